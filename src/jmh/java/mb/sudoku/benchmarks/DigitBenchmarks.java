@@ -0,0 +1,131 @@
+package mb.sudoku.benchmarks;
+
+import mb.sudoku.helpers.DigitNormalizer;
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.GrayscaleSource;
+import mb.sudoku.utils.ImageTools;
+import mb.sudoku.utils.SudokuTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the preparation and the recognition of digits on the samples of the train
+ * directory, every invocation taking the next sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigitBenchmarks {
+
+    private BufferedImage[] images;
+    private byte[][] pixels;
+    private byte[][] digits;
+    private byte[] batch;
+    private int next;
+
+    private DigitRecognizer recognizer;
+    private DigitNormalizer normalizer;
+    private byte[] digit;
+    private int[] numbers;
+    private double[] confidences;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<BufferedImage> samples = new ArrayList<BufferedImage>();
+        File[] numberDirs = new File("train").listFiles();
+        if (numberDirs == null) {
+            throw new IllegalStateException("No train directory in " + new File("").getAbsolutePath());
+        }
+        for (File numberDir : numberDirs) {
+            File[] files = numberDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.getName().contains(".jpg")) {
+                    samples.add(ImageIO.read(file));
+                }
+            }
+        }
+        images = samples.toArray(new BufferedImage[samples.size()]);
+
+        recognizer = SudokuTools.loadRecognizer();
+        normalizer = new DigitNormalizer();
+        digit = new byte[DigitRecognizer.SIZE];
+        pixels = new byte[images.length][];
+        digits = new byte[images.length][DigitRecognizer.SIZE];
+        for (int i = 0; i < images.length; i++) {
+            int width = images[i].getWidth();
+            int height = images[i].getHeight();
+            pixels[i] = new byte[width * height];
+            GrayscaleSource source = GrayscaleSource.of(images[i]);
+            for (int y = 0; y < height; y++) {
+                source.readRow(y, pixels[i], y * width);
+            }
+            normalizer.normalize(pixels[i], 0, width, width, height, digits[i]);
+        }
+
+        /* A grid worth of digits, packed for the batch recognition */
+        batch = new byte[81 * DigitRecognizer.SIZE];
+        for (int i = 0; i < 81; i++) {
+            System.arraycopy(digits[i % digits.length], 0, batch, i * DigitRecognizer.SIZE, DigitRecognizer.SIZE);
+        }
+        numbers = new int[81];
+        confidences = new double[81];
+    }
+
+    private int nextSample() {
+        int sample = next;
+        next = (next + 1) % images.length;
+        return sample;
+    }
+
+    @Benchmark
+    public BufferedImage prepareDigit() {
+        return ImageTools.prepareDigit(images[nextSample()]);
+    }
+
+    @Benchmark
+    public byte[] normalize() {
+        int sample = nextSample();
+        int width = images[sample].getWidth();
+        normalizer.normalize(pixels[sample], 0, width, width, images[sample].getHeight(), digit);
+        return digit;
+    }
+
+    @Benchmark
+    public int recognizeImage() {
+        return SudokuTools.recognize(images[nextSample()], recognizer);
+    }
+
+    @Benchmark
+    public int recognizeDigit() {
+        return recognizer.recognize(digits[nextSample()]);
+    }
+
+    @Benchmark
+    public int[] recognizeGrid() {
+        recognizer.recognize(batch, 81, numbers, confidences);
+        return numbers;
+    }
+}
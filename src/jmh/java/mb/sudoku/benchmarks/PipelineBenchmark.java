@@ -0,0 +1,66 @@
+package mb.sudoku.benchmarks;
+
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.SudokuReading;
+import mb.sudoku.utils.ImageTools;
+import mb.sudoku.utils.SudokuTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the whole reading of a {@link SyntheticPuzzle} of 1, 4 and 12 megapixels, from the
+ * bytes of its JPEG file to the digits, with the grid found by rotating the image then
+ * detecting it, as {@link mb.sudoku.Main} does with {@code rotate}, or by extracting it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"1", "4", "12"})
+    public double megapixels;
+
+    @Param({"rotate", "extract"})
+    public String flow;
+
+    private byte[] jpeg;
+    private DigitRecognizer recognizer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        jpeg = SyntheticPuzzle.jpeg(SyntheticPuzzle.draw(megapixels));
+        recognizer = SudokuTools.loadRecognizer();
+        if (read() == null) {
+            throw new IllegalStateException("No grid found in the " + megapixels + " MP puzzle");
+        }
+    }
+
+    @Benchmark
+    public SudokuReading read() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage monochrome = ImageTools.monochrome(image);
+        BufferedImage grid = flow.equals("rotate")
+                ? ImageTools.detectGrid(ImageTools.getRotatedImage(monochrome))
+                : ImageTools.extractGrid(monochrome);
+        return grid == null ? null : SudokuTools.readSudoku(grid, recognizer);
+    }
+}
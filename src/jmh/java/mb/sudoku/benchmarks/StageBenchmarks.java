@@ -0,0 +1,120 @@
+package mb.sudoku.benchmarks;
+
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.ExecutionMode;
+import mb.sudoku.helpers.HoughLine;
+import mb.sudoku.helpers.HoughTransform;
+import mb.sudoku.helpers.SudokuReading;
+import mb.sudoku.utils.ImageTools;
+import mb.sudoku.utils.SudokuTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks every stage of the pipeline on its own, on a {@link SyntheticPuzzle} of 1, 4 and 12
+ * megapixels. The input of every stage is the output of the previous one, computed once.
+ * <p/>
+ * The stages that can run on all cores are also benchmarked in {@link ExecutionMode#PARALLEL},
+ * as {@link mb.sudoku.Main} runs them for a single image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmarks {
+
+    @Param({"1", "4", "12"})
+    public double megapixels;
+
+    private BufferedImage image;
+    private BufferedImage monochrome;
+    private BufferedImage rotated;
+    private BufferedImage grid;
+    private HoughTransform voted;
+    private DigitRecognizer recognizer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = SyntheticPuzzle.draw(megapixels);
+        monochrome = ImageTools.monochrome(image);
+        rotated = ImageTools.getRotatedImage(monochrome);
+        grid = ImageTools.detectGrid(rotated);
+        if (grid == null) {
+            throw new IllegalStateException("No grid found in the " + megapixels + " MP puzzle");
+        }
+        voted = new HoughTransform(monochrome.getWidth(), monochrome.getHeight(), 360, 60, 120);
+        voted.addPoints(monochrome);
+        recognizer = SudokuTools.loadRecognizer();
+    }
+
+    @Benchmark
+    public BufferedImage monochrome() {
+        return ImageTools.monochrome(image);
+    }
+
+    @Benchmark
+    public BufferedImage monochromeParallel() {
+        return ImageTools.monochrome(image, ExecutionMode.PARALLEL);
+    }
+
+    @Benchmark
+    public int houghAddPoints() {
+        HoughTransform houghTransform = HoughTransform.acquire(monochrome.getWidth(), monochrome.getHeight(), 360, 60, 120);
+        houghTransform.addPoints(monochrome);
+        return houghTransform.getHighestValue();
+    }
+
+    @Benchmark
+    public int houghAddPointsParallel() {
+        HoughTransform houghTransform = HoughTransform.acquire(monochrome.getWidth(), monochrome.getHeight(), 360, 60, 120);
+        houghTransform.setExecutionMode(ExecutionMode.PARALLEL);
+        houghTransform.addPoints(monochrome);
+        return houghTransform.getHighestValue();
+    }
+
+    @Benchmark
+    public Vector<HoughLine> houghGetLines() {
+        return voted.getLines((int) (0.6 * voted.getHighestValue()));
+    }
+
+    @Benchmark
+    public BufferedImage getRotatedImage() {
+        return ImageTools.getRotatedImage(monochrome);
+    }
+
+    @Benchmark
+    public BufferedImage detectGrid() {
+        return ImageTools.detectGrid(rotated);
+    }
+
+    @Benchmark
+    public BufferedImage extractGrid() {
+        return ImageTools.extractGrid(monochrome);
+    }
+
+    @Benchmark
+    public BufferedImage extractGridParallel() {
+        return ImageTools.extractGrid(monochrome, ExecutionMode.PARALLEL);
+    }
+
+    @Benchmark
+    public SudokuReading readSudoku() {
+        return SudokuTools.readSudoku(grid, recognizer);
+    }
+}
@@ -0,0 +1,99 @@
+package mb.sudoku.benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Draws the photo of a sudoku puzzle at a given resolution, for the benchmarks.
+ * <p/>
+ * The page has the 4:3 shape of a camera picture and is lit unevenly, from left to right, so
+ * the adaptive threshold has work to do. The grid covers 70% of the height and is turned by
+ * {@code ANGLE} degrees, so the rotation and the detection of the grid are not trivial. The
+ * digits are the ones of {@code PUZZLE}, drawn in a bold sans serif font.
+ */
+public final class SyntheticPuzzle {
+
+    /* The puzzle drawn, row by row, 0 for an empty cell */
+    public static final String PUZZLE = "000604700706000009000005080070020093800000005430010070050200000300000208002301000";
+
+    /* The angle the grid is turned by, in degrees */
+    private static final double ANGLE = 3;
+
+    private SyntheticPuzzle() {
+    }
+
+    /**
+     * Draws the puzzle on a color image of about the given number of megapixels.
+     *
+     * @param megapixels the size of the image in millions of pixels
+     * @return the 4:3 image, in the BGR layout {@link ImageIO} decodes JPEG files to
+     */
+    public static BufferedImage draw(double megapixels) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = width * 3 / 4;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        /* 1. The unevenly lit page */
+        graphics.setPaint(new GradientPaint(0, 0, new Color(235, 232, 225), width, height, new Color(170, 168, 160)));
+        graphics.fillRect(0, 0, width, height);
+
+        /* 2. The grid, turned around the middle of the image */
+        double side = 0.7 * height;
+        double cell = side / 9;
+        graphics.rotate(Math.toRadians(ANGLE), width / 2.0, height / 2.0);
+        graphics.translate((width - side) / 2, (height - side) / 2);
+        graphics.setColor(new Color(25, 25, 30));
+        for (int i = 0; i <= 9; i++) {
+            float thickness = (float) Math.max(1, cell / (i % 3 == 0 ? 12 : 30));
+            graphics.setStroke(new BasicStroke(thickness));
+            graphics.draw(new java.awt.geom.Line2D.Double(0, i * cell, side, i * cell));
+            graphics.draw(new java.awt.geom.Line2D.Double(i * cell, 0, i * cell, side));
+        }
+
+        /* 3. The digits, centered in their cells */
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, (int) (cell * 0.65)));
+        FontMetrics metrics = graphics.getFontMetrics();
+        for (int row = 0; row < 9; row++) {
+            for (int column = 0; column < 9; column++) {
+                char digit = PUZZLE.charAt(row * 9 + column);
+                if (digit == '0') {
+                    continue;
+                }
+                String text = String.valueOf(digit);
+                float x = (float) ((column + 0.5) * cell - metrics.stringWidth(text) / 2.0);
+                float y = (float) ((row + 0.5) * cell + (metrics.getAscent() - metrics.getDescent()) / 2.0);
+                graphics.drawString(text, x, y);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Encodes an image as a JPEG file.
+     *
+     * @param image the image
+     * @return the bytes of the JPEG file
+     */
+    public static byte[] jpeg(BufferedImage image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "jpg", bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,596 @@
+package mb.sudoku;
+
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.Pipeline;
+import mb.sudoku.helpers.SudokuReading;
+import mb.sudoku.utils.ImageTools;
+import mb.sudoku.utils.SudokuTools;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>Batch</h1>
+ * Reads the sudoku grids of many images through a {@link Pipeline} and streams one record
+ * per image, as JSON Lines or CSV.
+ * <p/>
+ * Usage: {@code batch [--threads N] [--stage NAME=THREADS]... [--in-flight N] [--format jsonl|csv]
+ * [--output FILE] [--stats SECONDS] [--extract] INPUT...}
+ * <p/>
+ * Every input is an image file, a directory searched recursively for images, a glob such as
+ * {@code scans/**}{@code /*.jpg}, or {@code @FILE} naming a text file with one input per line.
+ * Every image goes through the stages {@code decode} ({@link ImageIO#read(java.io.File)}),
+ * {@code monochrome} ({@link ImageTools#monochrome(java.awt.image.BufferedImage)}),
+ * {@code rotate} ({@link ImageTools#getRotatedImage(java.awt.image.BufferedImage)}),
+ * {@code detect} ({@link ImageTools#detectGrid(java.awt.image.BufferedImage)}) and
+ * {@code read} ({@link SudokuTools#readSudoku(java.awt.image.BufferedImage, mb.sudoku.helpers.DigitRecognizer)}).
+ * With {@code --extract} there is no {@code rotate} stage and {@code detect} is
+ * {@link ImageTools#extractGrid(java.awt.image.BufferedImage)}.
+ * <p/>
+ * Every stage runs on {@code --threads} threads, the number of cores by default, unless
+ * {@code --stage} gives it its own number, and as many images can wait in front of it. The
+ * inputs are walked while the stages run, but at most {@code --in-flight} images, twice the
+ * number of cores by default, are between decoding and their record at any time, whatever
+ * the threads and queues of the stages would hold. The memory used therefore depends on
+ * that limit and the size of the images only, not on the size of the batch or the number of
+ * stages. The statistics of the stages are printed every {@code --stats} seconds, and at
+ * the end, to find the stage to give more threads to.
+ * <p/>
+ * The records are written as the images complete, so their order is not the order of the
+ * inputs; the {@code index} field gives the latter. An image that can not be read or whose
+ * grid is not found gets a record with its status and the run goes on.
+ */
+public class Batch {
+
+    /* The extensions of the images picked up when searching a directory */
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+
+    /* The stages of the pipeline, also the timings of a record */
+    private static final String[] STAGES = {"decode", "monochrome", "rotate", "detect", "read"};
+    private static final int DECODE = 0;
+    private static final int MONOCHROME = 1;
+    private static final int ROTATE = 2;
+    private static final int DETECT = 3;
+    private static final int READ = 4;
+
+    /* The threshold workspace of each thread of the monochrome stage, reused for every image */
+    private static final ThreadLocal<ImageTools.ThresholdWorkspace> WORKSPACE = new ThreadLocal<ImageTools.ThresholdWorkspace>() {
+        @Override
+        protected ImageTools.ThresholdWorkspace initialValue() {
+            return new ImageTools.ThresholdWorkspace();
+        }
+    };
+
+    private static final String USAGE = "Usage: batch [--threads N] [--stage NAME=THREADS]... [--in-flight N]"
+            + " [--format jsonl|csv] [--output FILE] [--stats SECONDS] [--extract] INPUT...";
+
+    /* The columns of the CSV output, also the fields of the JSON output */
+    private static final String CSV_HEADER = "index,path,status,grid,occupied,min_confidence,"
+            + "decode_ms,monochrome_ms,rotate_ms,detect_ms,read_ms,total_ms,error";
+
+    private final DigitRecognizer recognizer;
+    private final boolean extract;
+    private final boolean csv;
+    private final Writer output;
+    private final Pipeline<Job> pipeline;
+    private final Semaphore inFlight;
+
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger noGrid = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * An image going through the pipeline.
+     */
+    private static class Job {
+        private final int index;
+        private final Path file;
+        private final long startTime = System.nanoTime();
+        private final long[] times = new long[STAGES.length];
+        private BufferedImage image;
+        private SudokuReading reading;
+        private String status = "ok";
+        private String error;
+
+        Job(int index, Path file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A stage recording the time it spent on every job.
+     */
+    private static abstract class TimedStage implements Pipeline.Stage<Job> {
+        private final int stage;
+
+        TimedStage(int stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public boolean process(Job job) throws Exception {
+            long start = System.nanoTime();
+            try {
+                return run(job);
+            } finally {
+                job.times[stage] = System.nanoTime() - start;
+            }
+        }
+
+        abstract boolean run(Job job) throws Exception;
+    }
+
+    private Batch(DigitRecognizer recognizer, boolean extract, boolean csv, Writer output, int[] threads, int inFlight) {
+        this.recognizer = recognizer;
+        this.inFlight = new Semaphore(inFlight);
+        this.extract = extract;
+        this.csv = csv;
+        this.output = output;
+        this.pipeline = new Pipeline<Job>(new Pipeline.Sink<Job>() {
+            @Override
+            public void done(Job job, Throwable error) {
+                try {
+                    complete(job, error);
+                } finally {
+                    /* Only the jobs of the pipeline took a turn in submit */
+                    Batch.this.inFlight.release();
+                }
+            }
+        });
+
+        pipeline.addStage(STAGES[DECODE], threads[DECODE], threads[DECODE], new TimedStage(DECODE) {
+            @Override
+            boolean run(Job job) throws IOException {
+                job.image = ImageIO.read(job.file.toFile());
+                if (job.image == null) {
+                    job.status = "error";
+                    job.error = "Unsupported image format";
+                    return false;
+                }
+                return true;
+            }
+        });
+        pipeline.addStage(STAGES[MONOCHROME], threads[MONOCHROME], threads[MONOCHROME], new TimedStage(MONOCHROME) {
+            @Override
+            boolean run(Job job) {
+                job.image = ImageTools.monochrome(job.image, WORKSPACE.get());
+                return true;
+            }
+        });
+        if (!extract) {
+            pipeline.addStage(STAGES[ROTATE], threads[ROTATE], threads[ROTATE], new TimedStage(ROTATE) {
+                @Override
+                boolean run(Job job) {
+                    job.image = ImageTools.getRotatedImage(job.image);
+                    return true;
+                }
+            });
+        }
+        pipeline.addStage(STAGES[DETECT], threads[DETECT], threads[DETECT], new TimedStage(DETECT) {
+            @Override
+            boolean run(Job job) {
+                job.image = Batch.this.extract ? ImageTools.extractGrid(job.image) : ImageTools.detectGrid(job.image);
+                if (job.image == null) {
+                    job.status = "no_grid";
+                    return false;
+                }
+                return true;
+            }
+        });
+        pipeline.addStage(STAGES[READ], threads[READ], threads[READ], new TimedStage(READ) {
+            @Override
+            boolean run(Job job) {
+                job.reading = SudokuTools.readSudoku(job.image, Batch.this.recognizer);
+                job.image = null;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Runs the batch described by the command line arguments, the {@code batch} argument excluded.
+     *
+     * @param args the options and the inputs
+     */
+    public static void run(String[] args) throws IOException, InterruptedException {
+        int[] threads = new int[STAGES.length];
+        Arrays.fill(threads, Runtime.getRuntime().availableProcessors());
+        boolean[] stageThreads = new boolean[STAGES.length];
+        int inFlight = 2 * Runtime.getRuntime().availableProcessors();
+        boolean csv = false;
+        boolean extract = false;
+        String outputFile = null;
+        long statsPeriod = 0;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            String option = args[first];
+            if (option.equals("--extract")) {
+                extract = true;
+            } else if (option.equals("--threads") && first + 1 < args.length) {
+                int count = parseCount(option, args[++first], USAGE);
+                if (count < 0) {
+                    return;
+                }
+                for (int i = 0; i < STAGES.length; i++) {
+                    if (!stageThreads[i]) {
+                        threads[i] = count;
+                    }
+                }
+            } else if (option.equals("--stage") && first + 1 < args.length) {
+                String[] stage = args[++first].split("=");
+                int index = stage.length == 2 ? Arrays.asList(STAGES).indexOf(stage[0]) : -1;
+                if (index < 0) {
+                    System.err.println("Unknown stage " + args[first] + ", expected NAME=THREADS with NAME one of "
+                            + Arrays.toString(STAGES));
+                    return;
+                }
+                threads[index] = parseCount(option, stage[1], USAGE);
+                if (threads[index] < 0) {
+                    return;
+                }
+                stageThreads[index] = true;
+            } else if (option.equals("--in-flight") && first + 1 < args.length) {
+                inFlight = parseCount(option, args[++first], USAGE);
+                if (inFlight < 0) {
+                    return;
+                }
+            } else if (option.equals("--format") && first + 1 < args.length) {
+                String format = args[++first];
+                if (!format.equals("jsonl") && !format.equals("csv")) {
+                    System.err.println("Unknown format " + format + ", expected jsonl or csv");
+                    return;
+                }
+                csv = format.equals("csv");
+            } else if (option.equals("--output") && first + 1 < args.length) {
+                outputFile = args[++first];
+            } else if (option.equals("--stats") && first + 1 < args.length) {
+                double seconds = parseSeconds(option, args[++first], USAGE);
+                if (seconds < 0) {
+                    return;
+                }
+                statsPeriod = (long) (seconds * 1000);
+            } else {
+                System.err.println("Unknown option " + option);
+                System.err.println(USAGE);
+                return;
+            }
+        }
+        if (first == args.length) {
+            System.err.println(USAGE);
+            return;
+        }
+
+        Writer output = new BufferedWriter(new OutputStreamWriter(outputFile == null
+                ? System.out : new FileOutputStream(outputFile), Charset.forName("UTF-8")));
+        DigitRecognizer recognizer = SudokuTools.loadRecognizer();
+        final Batch batch = new Batch(recognizer, extract, csv, output, threads, inFlight);
+        long start = System.nanoTime();
+        Thread statsPrinter = null;
+        if (statsPeriod > 0) {
+            final long period = statsPeriod;
+            statsPrinter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(period);
+                            System.err.print(batch.pipeline.getStats());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "batch-stats");
+            statsPrinter.setDaemon(true);
+            statsPrinter.start();
+        }
+
+        batch.pipeline.start();
+        try {
+            if (csv) {
+                output.write(CSV_HEADER);
+                output.write('\n');
+            }
+            for (int i = first; i < args.length; i++) {
+                batch.addInput(args[i]);
+            }
+        } finally {
+            batch.pipeline.finish();
+            if (statsPrinter != null) {
+                statsPrinter.interrupt();
+            }
+            output.flush();
+            if (outputFile != null) {
+                output.close();
+            }
+        }
+        System.err.print(batch.pipeline.getStats());
+        System.err.println(String.format(Locale.ROOT, "Read %d images in %.1f s: %d ok, %d without a grid, %d failed",
+                batch.submitted.get(), (System.nanoTime() - start) / 1e9,
+                batch.succeeded.get(), batch.noGrid.get(), batch.failed.get()));
+    }
+
+    /**
+     * Parses the value of an option counting threads or images, printing the usage if it is not
+     * a whole number of at least 1. Also used for the options of {@link Server}.
+     *
+     * @return the count, or -1 if the value is wrong
+     */
+    static int parseCount(String option, String value, String usage) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 1) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("Invalid value " + value + " for " + option + ", expected a whole number of at least 1");
+        System.err.println(usage);
+        return -1;
+    }
+
+    /**
+     * Parses the value of an option giving a duration in seconds, printing the usage if it is
+     * not a positive number. Also used for the options of {@link Server}.
+     *
+     * @return the seconds, or -1 if the value is wrong
+     */
+    static double parseSeconds(String option, String value, String usage) {
+        try {
+            double seconds = Double.parseDouble(value);
+            if (seconds > 0 && !Double.isInfinite(seconds)) {
+                return seconds;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("Invalid value " + value + " for " + option + ", expected a number of seconds above 0");
+        System.err.println(usage);
+        return -1;
+    }
+
+    /**
+     * Submits the images of an input: an image, a directory, a glob or a {@code @FILE} list.
+     */
+    private void addInput(String input) throws IOException, InterruptedException {
+        if (input.startsWith("@")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(input.substring(1)), Charset.forName("UTF-8")));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        addInput(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return;
+        }
+
+        int glob = indexOfGlob(input);
+        if (glob < 0) {
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                walk(path, null);
+            } else {
+                submit(path);
+            }
+            return;
+        }
+
+        /* Walk from the last directory before the first glob character */
+        int slash = Math.max(input.lastIndexOf('/', glob), input.lastIndexOf(File.separatorChar, glob));
+        Path base = Paths.get(slash < 0 ? "" : input.substring(0, slash + 1));
+        walk(base, FileSystems.getDefault().getPathMatcher("glob:" + input));
+    }
+
+    private static int indexOfGlob(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Submits the images under a directory, the files matching the matcher if there is one.
+     */
+    private void walk(Path directory, final PathMatcher matcher) throws IOException, InterruptedException {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (matcher != null ? matcher.matches(file) : isImage(file)) {
+                        try {
+                            submit(file);
+                        } catch (InterruptedException e) {
+                            throw new WalkInterrupted(e);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    complete(new Job(submitted.getAndIncrement(), file), e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (WalkInterrupted e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues an image for the pipeline, waiting while {@code --in-flight} images are in it.
+     */
+    private void submit(Path file) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            pipeline.submit(new Job(submitted.getAndIncrement(), file));
+        } catch (InterruptedException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Counts a job leaving the pipeline and writes its record.
+     *
+     * @param error what a stage threw for the job, null if nothing was thrown
+     */
+    private void complete(Job job, Throwable error) {
+        job.image = null;
+        if (error != null) {
+            job.status = "error";
+            job.error = error.toString();
+        }
+        if (job.status.equals("ok")) {
+            succeeded.incrementAndGet();
+        } else if (job.status.equals("no_grid")) {
+            noGrid.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+
+        String grid = null;
+        double minConfidence = 1;
+        if (job.reading != null) {
+            StringBuilder digits = new StringBuilder(81);
+            for (int i = 0; i < 9; i++) {
+                for (int j = 0; j < 9; j++) {
+                    digits.append((char) ('0' + job.reading.getDigit(i, j)));
+                    if (job.reading.isOccupied(i, j)) {
+                        minConfidence = Math.min(minConfidence, job.reading.getConfidence(i, j));
+                    }
+                }
+            }
+            grid = digits.toString();
+        }
+        write(job.index, job.file.toString(), job.status, grid,
+                job.reading == null ? 0 : job.reading.getOccupiedCount(), minConfidence,
+                job.times, System.nanoTime() - job.startTime, job.error);
+    }
+
+    /**
+     * Writes the record of one image, as a JSON object on one line or as a CSV row.
+     *
+     * @param times the nanoseconds spent in every stage
+     */
+    private void write(int index, String path, String status, String grid, int occupied, double minConfidence,
+                       long[] times, long total, String error) {
+        StringBuilder record = new StringBuilder(256);
+        if (csv) {
+            record.append(index).append(',').append(csvQuote(path)).append(',').append(status).append(',')
+                    .append(grid == null ? "" : grid).append(',')
+                    .append(grid == null ? "" : String.valueOf(occupied)).append(',')
+                    .append(grid == null ? "" : String.format(Locale.ROOT, "%.4f", minConfidence));
+            for (long time : times) {
+                record.append(',').append(millis(time));
+            }
+            record.append(',').append(millis(total)).append(',').append(error == null ? "" : csvQuote(error));
+        } else {
+            record.append("{\"index\":").append(index)
+                    .append(",\"path\":").append(jsonQuote(path))
+                    .append(",\"status\":\"").append(status).append('"');
+            if (grid != null) {
+                record.append(",\"grid\":\"").append(grid).append('"')
+                        .append(",\"occupied\":").append(occupied)
+                        .append(",\"min_confidence\":").append(String.format(Locale.ROOT, "%.4f", minConfidence));
+            }
+            for (int i = 0; i < STAGES.length; i++) {
+                record.append(",\"").append(STAGES[i]).append("_ms\":").append(millis(times[i]));
+            }
+            record.append(",\"total_ms\":").append(millis(total));
+            if (error != null) {
+                record.append(",\"error\":").append(jsonQuote(error));
+            }
+            record.append('}');
+        }
+        record.append('\n');
+        synchronized (output) {
+            try {
+                output.write(record.toString());
+                output.flush();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String csvQuote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonQuote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /* Carries an interruption out of the file visitor, which can not throw it */
+    private static class WalkInterrupted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WalkInterrupted(InterruptedException cause) {
+            super(cause);
+        }
+
+        @Override
+        public InterruptedException getCause() {
+            return (InterruptedException) super.getCause();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package mb.sudoku;
 
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.ExecutionMode;
 import mb.sudoku.utils.ImageTools;
 import mb.sudoku.utils.SudokuTools;
 
@@ -8,18 +10,42 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Created by Mihail on 2/13/2015.
  */
 public class Main {
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("train")) {
+            SudokuTools.learn();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("batch")) {
+            Batch.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            Server.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        DigitRecognizer recognizer = SudokuTools.loadRecognizer();
         BufferedImage bufferedImage = ImageIO.read(new File("sudoku.jpg"));
-        BufferedImage bufferedImageBW = ImageTools.monochrome(bufferedImage);
-        BufferedImage rotatedImage = ImageTools.getRotatedImage(bufferedImageBW);
-        BufferedImage detectedGrid = ImageTools.detectGrid(rotatedImage);
-        int [][] table = SudokuTools.getSudoku(detectedGrid);
+
+        /* A single image has all the cores to itself */
+        BufferedImage bufferedImageBW = ImageTools.monochrome(bufferedImage, ExecutionMode.PARALLEL);
+        BufferedImage detectedGrid;
+        if (args.length > 0 && args[0].equals("rotate")) {
+            BufferedImage rotatedImage = ImageTools.getRotatedImage(bufferedImageBW, ExecutionMode.PARALLEL);
+            detectedGrid = ImageTools.detectGrid(rotatedImage, ExecutionMode.PARALLEL);
+        } else {
+            detectedGrid = ImageTools.extractGrid(bufferedImageBW, ExecutionMode.PARALLEL);
+        }
+        if (detectedGrid == null) {
+            return;
+        }
+        int [][] table = SudokuTools.getSudoku(detectedGrid, recognizer);
         for (int i = 0; i < 9; i++) {
             for (int j = 0; j < 9; j++) {
                 if (table[i][j] == 0) {
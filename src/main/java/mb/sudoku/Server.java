@@ -0,0 +1,413 @@
+package mb.sudoku;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.SudokuReading;
+import mb.sudoku.utils.ImageTools;
+import mb.sudoku.utils.SudokuTools;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>Server</h1>
+ * Serves the recognition over HTTP, keeping the recognizer loaded between requests.
+ * <p/>
+ * Usage: {@code serve [--port N] [--concurrency N] [--wait SECONDS] [--max-bytes N] [--rotate]}
+ * <p/>
+ * {@code POST /recognize} takes an image, either as the whole body or as the first file of a
+ * {@code multipart/form-data} upload, and answers a JSON object with the 9x9 {@code grid}
+ * (0 for an empty cell), the {@code occupied} cells, the {@code confidence} of every cell and
+ * the time spent, see {@link SudokuTools#readSudoku(java.awt.image.BufferedImage, mb.sudoku.helpers.DigitRecognizer)}.
+ * The grid is found like in {@link Main}: by {@link ImageTools#extractGrid(java.awt.image.BufferedImage)},
+ * or with {@code --rotate} by {@link ImageTools#getRotatedImage(java.awt.image.BufferedImage)} and
+ * {@link ImageTools#detectGrid(java.awt.image.BufferedImage)}, like {@code Main rotate}.
+ * {@code GET /health} answers {@code {"status":"ok"}}.
+ * <p/>
+ * An image that is corrupt or of an unknown format is answered 400, an image without a grid
+ * 422, and anything else going wrong while processing it, errors included, 500, so every
+ * request gets an answer.
+ * <p/>
+ * Every request runs on its own virtual thread when the runtime has them (Java 21 and later)
+ * and on a cached thread pool otherwise, but only receives the upload and sends the answer
+ * there. Decoding and reading the image run on a fixed pool of {@code --concurrency} platform
+ * threads, the number of cores by default, so the hough transforms and the threshold
+ * workspace kept by every thread are reused from one image to the next instead of piling up
+ * on short lived threads. A request waiting longer than {@code --wait} seconds for its turn,
+ * counted once the upload is received, is answered 503.
+ */
+public class Server {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* The threshold workspace of each worker, reused by every image it processes */
+    private static final ThreadLocal<ImageTools.ThresholdWorkspace> WORKSPACE = new ThreadLocal<ImageTools.ThresholdWorkspace>() {
+        @Override
+        protected ImageTools.ThresholdWorkspace initialValue() {
+            return new ImageTools.ThresholdWorkspace();
+        }
+    };
+
+    private static final String USAGE = "Usage: serve [--port N] [--concurrency N] [--wait SECONDS] [--max-bytes N] [--rotate]";
+
+    private final DigitRecognizer recognizer;
+    private final boolean rotate;
+    private final Semaphore running;
+    private final ExecutorService workers;
+    private final long waitMillis;
+    private final int maxBytes;
+
+    private Server(DigitRecognizer recognizer, boolean rotate, int concurrency, long waitMillis, int maxBytes) {
+        this.recognizer = recognizer;
+        this.rotate = rotate;
+        this.running = new Semaphore(concurrency, true);
+        this.workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "recognize-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.waitMillis = waitMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts the server described by the command line arguments, the {@code serve} argument excluded,
+     * and returns once it is listening.
+     *
+     * @param args the options
+     * @return the server, to be stopped by {@link HttpServer#stop(int)}, or null if the arguments are wrong
+     */
+    public static HttpServer run(String[] args) throws IOException {
+        int port = 8080;
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        long waitMillis = 30000;
+        int maxBytes = 32 << 20;
+        boolean rotate = false;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--rotate")) {
+                rotate = true;
+            } else if (option.equals("--port") && i + 1 < args.length) {
+                port = Batch.parseCount(option, args[++i], USAGE);
+                if (port > 65535) {
+                    System.err.println("Invalid value " + port + " for " + option + ", expected a port up to 65535");
+                    System.err.println(USAGE);
+                    return null;
+                }
+            } else if (option.equals("--concurrency") && i + 1 < args.length) {
+                concurrency = Batch.parseCount(option, args[++i], USAGE);
+            } else if (option.equals("--wait") && i + 1 < args.length) {
+                double seconds = Batch.parseSeconds(option, args[++i], USAGE);
+                waitMillis = (long) (seconds * 1000);
+            } else if (option.equals("--max-bytes") && i + 1 < args.length) {
+                maxBytes = Batch.parseCount(option, args[++i], USAGE);
+            } else {
+                System.err.println("Unknown option " + option);
+                System.err.println(USAGE);
+                return null;
+            }
+            if (port < 0 || concurrency < 0 || waitMillis < 0 || maxBytes < 0) {
+                return null;
+            }
+        }
+
+        final Server server = new Server(SudokuTools.loadRecognizer(), rotate, concurrency, waitMillis, maxBytes);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/recognize", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                server.recognize(exchange);
+            }
+        });
+        httpServer.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "{\"status\":\"ok\"}");
+            }
+        });
+        httpServer.setExecutor(requestExecutor());
+        httpServer.start();
+        System.err.println("Listening on port " + httpServer.getAddress().getPort()
+                + ", " + concurrency + " images at once");
+        return httpServer;
+    }
+
+    /**
+     * Gets an executor starting a virtual thread for every request, looked up by reflection as
+     * the project is built for Java 8, or a cached thread pool when the runtime has none.
+     */
+    private static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Handles {@code POST /recognize}.
+     */
+    private void recognize(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, error("Use POST with the image as the body"));
+                return;
+            }
+
+            /* 1. Receive the upload, before taking a turn */
+            byte[] body = readBody(exchange.getRequestBody(), maxBytes);
+            if (body == null) {
+                respond(exchange, 413, error("The image is larger than " + maxBytes + " bytes"));
+                return;
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            InputStream image = imagePart(body, contentType);
+            if (image == null) {
+                respond(exchange, 400, error("No file in the multipart upload"));
+                return;
+            }
+
+            /* 2. Wait for a turn to process the image, a worker is then free */
+            long start = System.nanoTime();
+            if (!running.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                respond(exchange, 503, error("Too many images in progress"));
+                return;
+            }
+            Answer answer;
+            try {
+                Future<Answer> recognition = workers.submit(new Recognition(image, start));
+                try {
+                    answer = recognition.get();
+                } catch (InterruptedException e) {
+                    recognition.cancel(true);
+                    throw e;
+                }
+            } catch (ExecutionException e) {
+                System.err.println(e.getCause().toString());
+                answer = new Answer(500, error(e.getCause().toString()));
+            } finally {
+                running.release();
+            }
+            respond(exchange, answer.status, answer.json);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("The server is stopping"));
+        } catch (RuntimeException e) {
+            System.err.println(e.toString());
+            respond(exchange, 500, error(e.toString()));
+        } catch (Error e) {
+            System.err.println(e.toString());
+            respond(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Decodes an image, finds the grid and reads it, on a worker.
+     */
+    private class Recognition implements Callable<Answer> {
+
+        private final InputStream image;
+        private final long start;
+
+        Recognition(InputStream image, long start) {
+            this.image = image;
+            this.start = start;
+        }
+
+        @Override
+        public Answer call() {
+            long waited = System.nanoTime();
+
+            /* 3. Decode, find the grid and read it */
+            BufferedImage bufferedImage;
+            try {
+                bufferedImage = ImageIO.read(image);
+            } catch (IOException e) {
+                bufferedImage = null;
+                System.err.println("Corrupt image: " + e.getMessage());
+            }
+            if (bufferedImage == null) {
+                return new Answer(400, error("Unsupported or corrupt image"));
+            }
+            BufferedImage imageBW = ImageTools.monochrome(bufferedImage, WORKSPACE.get());
+            BufferedImage grid = rotate ? ImageTools.detectGrid(ImageTools.getRotatedImage(imageBW))
+                    : ImageTools.extractGrid(imageBW);
+            if (grid == null) {
+                return new Answer(422, error("No sudoku grid found"));
+            }
+            return new Answer(200, reading(SudokuTools.readSudoku(grid, recognizer), start, waited));
+        }
+    }
+
+    /**
+     * The status and the JSON body of an answer.
+     */
+    private static class Answer {
+
+        private final int status;
+        private final String json;
+
+        Answer(int status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Reads the whole body, or returns null as soon as it is longer than the limit.
+     */
+    private static byte[] readBody(InputStream input, int maxBytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            if (body.size() + read > maxBytes) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Gets the image of an upload: the first part of a multipart body, or the whole body.
+     *
+     * @return the bytes of the image, null if a multipart body has no part
+     */
+    private static InputStream imagePart(byte[] body, String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return new ByteArrayInputStream(body);
+        }
+        int boundaryIndex = contentType.indexOf("boundary=");
+        if (boundaryIndex < 0) {
+            return null;
+        }
+        String boundary = contentType.substring(boundaryIndex + "boundary=".length()).trim();
+        if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        byte[] delimiter = ("--" + boundary).getBytes(UTF_8);
+        byte[] headerEnd = "\r\n\r\n".getBytes(UTF_8);
+
+        /* The content of the first part is between its headers and the next delimiter */
+        int partStart = indexOf(body, delimiter, 0);
+        if (partStart < 0) {
+            return null;
+        }
+        int contentStart = indexOf(body, headerEnd, partStart + delimiter.length);
+        if (contentStart < 0) {
+            return null;
+        }
+        contentStart += headerEnd.length;
+        int contentEnd = indexOf(body, ("\r\n--" + boundary).getBytes(UTF_8), contentStart);
+        if (contentEnd < 0) {
+            return null;
+        }
+        return new ByteArrayInputStream(body, contentStart, contentEnd - contentStart);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the reading of a grid as JSON.
+     *
+     * @param start  when the request, its upload received, started waiting for its turn
+     * @param waited when the request got its turn
+     */
+    private static String reading(SudokuReading reading, long start, long waited) {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"grid\":[");
+        for (int i = 0; i < 9; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < 9; j++) {
+                json.append(j == 0 ? "" : ",").append(reading.getDigit(i, j));
+            }
+            json.append(']');
+        }
+        json.append("],\"occupied\":[");
+        for (int i = 0; i < 9; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < 9; j++) {
+                json.append(j == 0 ? "" : ",").append(reading.isOccupied(i, j));
+            }
+            json.append(']');
+        }
+        json.append("],\"confidence\":[");
+        for (int i = 0; i < 9; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < 9; j++) {
+                json.append(j == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.4f", reading.getConfidence(i, j)));
+            }
+            json.append(']');
+        }
+        long end = System.nanoTime();
+        json.append(String.format(Locale.ROOT, "],\"wait_ms\":%.3f,\"process_ms\":%.3f}",
+                (waited - start) / 1e6, (end - waited) / 1e6));
+        return json.toString();
+    }
+
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":\"");
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append("\"}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package mb.sudoku.helpers;
+
+/**
+ * Crops a cell around its digit and scales it to the 24x24 pixels compared by
+ * {@link DigitRecognizer}, working on the grayscale bytes of the cell.
+ * <p/>
+ * The digit is found by growing a box from the middle of the cell until a row, or a column,
+ * without any ink is met. Only the middle 70% of a row or column is looked at, so the grid
+ * lines at the border of the cell do not count. The ink of every row and column is counted
+ * in a single pass over the cell. The box is then scaled to 24x24 by area averaging.
+ * <p/>
+ * A normalizer keeps its projection buffers between cells, so normalizing allocates nothing
+ * once the buffers fit the cell size. It must not be shared between threads.
+ */
+public final class DigitNormalizer {
+
+    // the width and height of a normalized digit
+    public static final int SIZE = 24;
+
+    // the ink of every row, and of every column, of the cell
+    private int[] rowInk = new int[0];
+    private int[] columnInk = new int[0];
+
+    /**
+     * Normalizes a cell into a digit of {@code SIZE x SIZE} pixels.
+     *
+     * @param pixels the grayscale bytes of the cell, every non black pixel being ink
+     * @param offset the index of the top left pixel of the cell
+     * @param stride the number of bytes between two rows of the cell
+     * @param width  the width of the cell
+     * @param height the height of the cell
+     * @param digit  the {@code SIZE * SIZE} bytes receiving the digit, row by row
+     */
+    public void normalize(byte[] pixels, int offset, int stride, int width, int height, byte[] digit) {
+        normalize(pixels, offset, stride, width, height, digit, 0);
+    }
+
+    /**
+     * Normalizes a cell into a digit of {@code SIZE x SIZE} pixels, written at an offset so that
+     * many digits can be packed one after the other.
+     *
+     * @param pixels      the grayscale bytes of the cell, every non black pixel being ink
+     * @param offset      the index of the top left pixel of the cell
+     * @param stride      the number of bytes between two rows of the cell
+     * @param width       the width of the cell
+     * @param height      the height of the cell
+     * @param digit       the bytes receiving the digit, row by row
+     * @param digitOffset the index of the first byte of the digit
+     */
+    public void normalize(byte[] pixels, int offset, int stride, int width, int height, byte[] digit, int digitOffset) {
+        if (rowInk.length < height) {
+            rowInk = new int[height];
+        }
+        if (columnInk.length < width) {
+            columnInk = new int[width];
+        }
+
+        /* 1. Count the ink of the rows and the columns, ignoring the borders of the cell */
+        int horizontal = (int) (width * 0.15);
+        int vertical = (int) (height * 0.15);
+        for (int x = 0; x < width; x++) {
+            columnInk[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int ink = 0;
+            boolean countColumns = y >= vertical && y < height - vertical;
+            for (int x = 0, i = offset + y * stride; x < width; x++, i++) {
+                if (pixels[i] != 0) {
+                    if (x >= horizontal && x < width - horizontal) {
+                        ink++;
+                    }
+                    if (countColumns) {
+                        columnInk[x]++;
+                    }
+                }
+            }
+            rowInk[y] = ink;
+        }
+
+        /* 2. Grow the box from the middle until an empty row or column */
+        int up = height / 2 - 1;
+        while (up > 0) {
+            if (rowInk[--up] == 0) {
+                up++;
+                break;
+            }
+        }
+        int down = height / 2 + 1;
+        while (down < height - 1) {
+            if (rowInk[++down] == 0) {
+                down--;
+                break;
+            }
+        }
+        int left = width / 2 - 1;
+        while (left > 0) {
+            if (columnInk[--left] == 0) {
+                left++;
+                break;
+            }
+        }
+        int right = width / 2 + 1;
+        while (right < width - 1) {
+            if (columnInk[++right] == 0) {
+                right--;
+                break;
+            }
+        }
+
+        /* 3. Scale the box to the size of a digit */
+        resampleArea(pixels, offset, stride, width, height, left, up, right - left, down - up, digit, digitOffset, SIZE, SIZE);
+    }
+
+    /**
+     * Measures how much ink there is in the middle 70% of a cell, the part
+     * {@link #normalize(byte[], int, int, int, int, byte[])} looks at, so the grid lines at the
+     * border of the cell do not count. It is a single pass over the cell and tells the empty
+     * cells apart without normalizing them.
+     *
+     * @param pixels the grayscale bytes of the cell
+     * @param offset the index of the top left pixel of the cell
+     * @param stride the number of bytes between two rows of the cell
+     * @param width  the width of the cell
+     * @param height the height of the cell
+     * @return the mean of the middle pixels, from 0 for no ink to 1 for all ink
+     */
+    public static double centerInk(byte[] pixels, int offset, int stride, int width, int height) {
+        int horizontal = (int) (width * 0.15);
+        int vertical = (int) (height * 0.15);
+        long sum = 0;
+        for (int y = vertical; y < height - vertical; y++) {
+            for (int x = horizontal, i = offset + y * stride + horizontal; x < width - horizontal; x++, i++) {
+                sum += pixels[i] & 0xff;
+            }
+        }
+        int area = (width - 2 * horizontal) * (height - 2 * vertical);
+        return area > 0 ? sum / (255.0 * area) : 0;
+    }
+
+    /**
+     * Samples a rectangle of a grayscale image, every pixel of the result being the mean of the
+     * area of the rectangle it covers, weighted by how much of each source pixel is covered.
+     *
+     * @param pixels            the grayscale bytes of the source image
+     * @param offset            the index of the top left pixel of the source image
+     * @param stride            the number of bytes between two rows of the source image
+     * @param width             the width of the source image
+     * @param height            the height of the source image
+     * @param x                 the left of the rectangle
+     * @param y                 the top of the rectangle
+     * @param w                 the width of the rectangle
+     * @param h                 the height of the rectangle
+     * @param destination       the bytes receiving the result, row by row
+     * @param destinationOffset the index of the first byte of the result
+     * @param newW              the width of the result
+     * @param newH              the height of the result
+     */
+    public static void resampleArea(byte[] pixels, int offset, int stride, int width, int height,
+                                    double x, double y, double w, double h,
+                                    byte[] destination, int destinationOffset, int newW, int newH) {
+        double stepX = w / newW;
+        double stepY = h / newH;
+        for (int j = 0, d = destinationOffset; j < newH; j++) {
+            double top = Math.max(0, y + j * stepY);
+            double bottom = Math.min(height, y + (j + 1) * stepY);
+            for (int i = 0; i < newW; i++, d++) {
+                double left = Math.max(0, x + i * stepX);
+                double right = Math.min(width, x + (i + 1) * stepX);
+                double sum = 0;
+                double area = 0;
+                for (int sy = (int) top; sy < bottom; sy++) {
+                    double coverY = Math.min(bottom, sy + 1) - Math.max(top, sy);
+                    int row = offset + sy * stride;
+                    for (int sx = (int) left; sx < right; sx++) {
+                        double cover = coverY * (Math.min(right, sx + 1) - Math.max(left, sx));
+                        sum += cover * (pixels[row + sx] & 0xff);
+                        area += cover;
+                    }
+                }
+                destination[d] = area > 0 ? (byte) (int) (sum / area + 0.5) : 0;
+            }
+        }
+    }
+}
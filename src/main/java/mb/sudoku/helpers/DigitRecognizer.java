@@ -0,0 +1,274 @@
+package mb.sudoku.helpers;
+
+/**
+ * Recognizes a prepared 24x24 digit by finding the nearest learned template.
+ * <p/>
+ * The recognizer also holds the occupancy threshold learned with the templates: a cell whose
+ * {@link DigitNormalizer#centerInk(byte[], int, int, int, int)} is not above it is empty, and is
+ * neither normalized nor compared to the templates.
+ * <p/>
+ * The templates are kept in a single array of unsigned bytes, one template after the other, so
+ * a comparison streams through contiguous memory. The squared distance is summed in blocks of
+ * {@code BLOCK} pixels and a template is abandoned after the block where its partial sum
+ * reaches the second smallest distance found so far, as it can no longer be one of the two
+ * nearest templates. The two smallest distances are exact and tell how sure the answer is,
+ * see {@link #confidence(int, int)}.
+ * <p/>
+ * Instances are immutable, the templates are copied on construction and never
+ * modified afterwards, so a single recognizer can be shared between threads
+ * without any locking.
+ */
+public final class DigitRecognizer {
+
+    // the number of pixels of a prepared digit
+    public static final int SIZE = 24 * 24;
+
+    // the number of pixels summed between two checks of the partial distance, SIZE is a multiple of it
+    private static final int BLOCK = 64;
+
+    // the number of digits compared to all the templates before moving to the next ones
+    private static final int DIGIT_BLOCK = 8;
+
+    // the learned templates, SIZE unsigned bytes for each digit, one after the other
+    private final byte[] templates;
+
+    // the number of templates
+    private final int count;
+
+    // the center ink above which a cell holds a digit
+    private final double occupancyThreshold;
+
+    /**
+     * Initialises the recognizer with the learned templates and no occupancy threshold,
+     * so every cell is compared to the templates.
+     *
+     * @param templates one template of {@link #SIZE} pixels for each digit, 0 being the empty cell
+     */
+    public DigitRecognizer(int[][] templates) {
+        this(templates, 0);
+    }
+
+    /**
+     * Initialises the recognizer with the learned templates.
+     *
+     * @param templates          one template of {@link #SIZE} pixels for each digit, 0 being the empty cell,
+     *                           every value in [0, 255]
+     * @param occupancyThreshold the center ink above which a cell holds a digit, 0 to compare every
+     *                           cell that has any ink
+     */
+    public DigitRecognizer(int[][] templates, double occupancyThreshold) {
+        this.occupancyThreshold = occupancyThreshold;
+        this.count = templates.length;
+        this.templates = new byte[count * SIZE];
+        for (int i = 0; i < count; i++) {
+            if (templates[i].length != SIZE) {
+                throw new IllegalArgumentException("Template " + i + " has " + templates[i].length + " pixels");
+            }
+            for (int j = 0; j < SIZE; j++) {
+                int value = templates[i][j];
+                if (value < 0 || value > 255) {
+                    throw new IllegalArgumentException("Template " + i + " has the value " + value);
+                }
+                this.templates[i * SIZE + j] = (byte) value;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a cell holds a digit.
+     *
+     * @param centerInk the ink of the middle of the cell, see
+     *                  {@link DigitNormalizer#centerInk(byte[], int, int, int, int)}
+     * @return true if the cell must be recognized, false if it is empty
+     */
+    public boolean isOccupied(double centerInk) {
+        return centerInk > occupancyThreshold;
+    }
+
+    /**
+     * Gets how sure it is that a cell is empty: 1 for a cell without ink, down to 0 for a cell
+     * whose ink reaches the occupancy threshold.
+     *
+     * @param centerInk the ink of the middle of the cell
+     * @return the confidence of the cell being empty, in [0, 1]
+     */
+    public double emptyConfidence(double centerInk) {
+        if (occupancyThreshold <= 0) {
+            return centerInk > 0 ? 0 : 1;
+        }
+        return Math.max(0, 1 - centerInk / occupancyThreshold);
+    }
+
+    /**
+     * Gets the center ink above which a cell holds a digit.
+     */
+    public double getOccupancyThreshold() {
+        return occupancyThreshold;
+    }
+
+    /**
+     * Returns the most likely digit, the one whose template has the smallest
+     * squared distance to the image data.
+     *
+     * @param imageData the pixels of a prepared 24x24 digit
+     * @return the most likely digit, 0 for an empty cell
+     */
+    public int recognize(int[] imageData) {
+        int minDistance = Integer.MAX_VALUE;
+        int minDistanceNumber = 0;
+        for (int i = 0; i < count; i++) {
+            int distance = 0;
+            for (int j = 0, t = i * SIZE; j < SIZE; j++, t++) {
+                int difference = (templates[t] & 0xff) - imageData[j];
+                distance += difference * difference;
+            }
+            if (distance < minDistance) {
+                minDistance = distance;
+                minDistanceNumber = i;
+            }
+        }
+        return minDistanceNumber;
+    }
+
+    /**
+     * Returns the most likely digit for a digit prepared by {@link DigitNormalizer}.
+     *
+     * @param digit the {@link #SIZE} unsigned grayscale bytes of a prepared 24x24 digit
+     * @return the most likely digit, 0 for an empty cell
+     */
+    public int recognize(byte[] digit) {
+        return recognize(digit, 0, null);
+    }
+
+    /**
+     * Returns the most likely digit for a digit prepared by {@link DigitNormalizer}, along with
+     * the squared distances to the nearest and to the second nearest template.
+     *
+     * @param digit     the unsigned grayscale bytes holding a prepared 24x24 digit
+     * @param offset    the index of the first byte of the digit
+     * @param distances receives the smallest distance at 0 and the second smallest at 1,
+     *                  {@code Integer.MAX_VALUE} if there is no second template; may be null
+     * @return the most likely digit, 0 for an empty cell
+     */
+    public int recognize(byte[] digit, int offset, int[] distances) {
+        int nearest = Integer.MAX_VALUE;
+        int second = Integer.MAX_VALUE;
+        int nearestNumber = 0;
+        for (int i = 0; i < count; i++) {
+            int distance = distance(digit, offset, i * SIZE, second);
+            if (distance < nearest) {
+                second = nearest;
+                nearest = distance;
+                nearestNumber = i;
+            } else if (distance < second) {
+                second = distance;
+            }
+        }
+        if (distances != null) {
+            distances[0] = nearest;
+            distances[1] = second;
+        }
+        return nearestNumber;
+    }
+
+    /**
+     * Recognizes many digits prepared by {@link DigitNormalizer} in one call.
+     * <p/>
+     * The digits are compared to the templates as a blocked distance matrix: a block of
+     * {@code DIGIT_BLOCK} digits is compared to every template before the next block is read, so
+     * the templates and the block stay in the L1 cache while the digits stream past. Every digit
+     * gets the same answer as {@link #recognize(byte[], int, int[])}.
+     *
+     * @param digits      the unsigned grayscale bytes of the digits, {@link #SIZE} bytes for each, one after the other
+     * @param count       the number of digits
+     * @param numbers     receives the most likely digit of each digit
+     * @param confidences receives the {@link #confidence(int, int)} of each digit; may be null
+     */
+    public void recognize(byte[] digits, int count, int[] numbers, double[] confidences) {
+        int[] nearest = new int[DIGIT_BLOCK];
+        int[] second = new int[DIGIT_BLOCK];
+        for (int first = 0; first < count; first += DIGIT_BLOCK) {
+            int size = Math.min(DIGIT_BLOCK, count - first);
+            for (int k = 0; k < size; k++) {
+                nearest[k] = Integer.MAX_VALUE;
+                second[k] = Integer.MAX_VALUE;
+                numbers[first + k] = 0;
+            }
+
+            /* 1. Compare the block to every template, keeping the two nearest of each digit */
+            for (int i = 0; i < this.count; i++) {
+                for (int k = 0, offset = first * SIZE; k < size; k++, offset += SIZE) {
+                    int distance = distance(digits, offset, i * SIZE, second[k]);
+                    if (distance < nearest[k]) {
+                        second[k] = nearest[k];
+                        nearest[k] = distance;
+                        numbers[first + k] = i;
+                    } else if (distance < second[k]) {
+                        second[k] = distance;
+                    }
+                }
+            }
+
+            /* 2. Turn the distances into confidences */
+            if (confidences != null) {
+                for (int k = 0; k < size; k++) {
+                    confidences[first + k] = confidence(nearest[k], second[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets how sure a recognition is from its two smallest distances: 0 when the two nearest
+     * templates are as near as each other, up to 1 when the digit is exactly the nearest one.
+     *
+     * @param nearest the distance to the nearest template
+     * @param second  the distance to the second nearest template
+     * @return the relative margin between the two distances, in [0, 1]
+     */
+    public static double confidence(int nearest, int second) {
+        if (second == Integer.MAX_VALUE) {
+            return 1;
+        }
+        if (second == 0) {
+            return 0;
+        }
+        return (second - nearest) / (double) second;
+    }
+
+    /**
+     * Sums the squared distance between a digit and a template block by block, giving up
+     * after the first block that reaches the bound.
+     *
+     * @return the squared distance if it is below the bound, a partial sum not below the bound otherwise
+     */
+    private int distance(byte[] digit, int offset, int templateOffset, int bound) {
+        byte[] templates = this.templates;
+        int distance = 0;
+        for (int block = 0; block < SIZE; block += BLOCK) {
+            int d = offset + block;
+            int t = templateOffset + block;
+            for (int j = 0; j < BLOCK; j++) {
+                int difference = (templates[t + j] & 0xff) - (digit[d + j] & 0xff);
+                distance += difference * difference;
+            }
+            if (distance >= bound) {
+                return distance;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Gets a copy of the learned templates.
+     */
+    public int[][] getTemplates() {
+        int[][] copy = new int[count][SIZE];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < SIZE; j++) {
+                copy[i][j] = templates[i * SIZE + j] & 0xff;
+            }
+        }
+        return copy;
+    }
+}
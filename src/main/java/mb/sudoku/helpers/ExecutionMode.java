@@ -0,0 +1,18 @@
+package mb.sudoku.helpers;
+
+/**
+ * Selects how a processing step uses the available cores.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Run the whole step on the calling thread.
+     */
+    SERIAL,
+
+    /**
+     * Split the step into independent parts and run them on the common fork-join pool.
+     * The result is identical to {@link #SERIAL}.
+     */
+    PARALLEL
+}
@@ -0,0 +1,183 @@
+package mb.sudoku.helpers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads the rows of a {@link BufferedImage} as grayscale bytes, the mean of the
+ * red, green and blue channels of every pixel.
+ * <p/>
+ * The common image types are read straight from their data buffer:
+ * <ul>
+ * <li>{@code TYPE_3BYTE_BGR} and {@code TYPE_4BYTE_ABGR} sum the colour bytes of each pixel</li>
+ * <li>{@code TYPE_BYTE_GRAY} copies the row as it is, no conversion is needed</li>
+ * <li>{@code TYPE_INT_RGB}, {@code TYPE_INT_ARGB} and {@code TYPE_INT_BGR} sum the colour bytes of each int</li>
+ * </ul>
+ * Every other type goes through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+ * one row at a time. A source keeps a row buffer for that path, so it must not
+ * be shared between threads.
+ */
+public abstract class GrayscaleSource {
+
+    // the width and height of the image
+    protected final int width, height;
+
+    protected GrayscaleSource(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates the source best suited for the layout of the image.
+     *
+     * @param image the source image
+     * @return a grayscale source reading the image
+     */
+    public static GrayscaleSource of(BufferedImage image) {
+        Raster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return new InterleavedBytes(raster);
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return new GrayBytes(raster);
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR:
+                return new PackedInts(raster);
+            default:
+                return new Generic(image);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads one row of grayscale values.
+     *
+     * @param y           the row
+     * @param destination the buffer receiving {@code width} values
+     * @param offset      the offset of the first value in the buffer
+     */
+    public abstract void readRow(int y, byte[] destination, int offset);
+
+    /**
+     * Byte images with the colour bands interleaved, e.g. BGR or ABGR.
+     */
+    private static class InterleavedBytes extends GrayscaleSource {
+
+        private final byte[] data;
+        private final int origin, scanlineStride, pixelStride;
+        private final int band0, band1, band2;
+
+        InterleavedBytes(Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            data = dataBuffer.getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            pixelStride = sampleModel.getPixelStride();
+            origin = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            band0 = bandOffsets[0];
+            band1 = bandOffsets[1];
+            band2 = bandOffsets[2];
+        }
+
+        @Override
+        public void readRow(int y, byte[] destination, int offset) {
+            int pixel = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++, pixel += pixelStride) {
+                destination[offset + x] = (byte) (((data[pixel + band0] & 0xff) + (data[pixel + band1] & 0xff)
+                        + (data[pixel + band2] & 0xff)) / 3);
+            }
+        }
+    }
+
+    /**
+     * Grayscale byte images, already in the format we need.
+     */
+    private static class GrayBytes extends GrayscaleSource {
+
+        private final byte[] data;
+        private final int origin, scanlineStride;
+
+        GrayBytes(Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            data = dataBuffer.getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            origin = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX() + sampleModel.getBandOffsets()[0];
+        }
+
+        @Override
+        public void readRow(int y, byte[] destination, int offset) {
+            System.arraycopy(data, origin + y * scanlineStride, destination, offset, width);
+        }
+    }
+
+    /**
+     * Int images with 8 bits per colour channel, in any channel order.
+     */
+    private static class PackedInts extends GrayscaleSource {
+
+        private final int[] data;
+        private final int origin, scanlineStride;
+
+        PackedInts(Raster raster) {
+            super(raster.getWidth(), raster.getHeight());
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+            data = dataBuffer.getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            origin = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX();
+        }
+
+        @Override
+        public void readRow(int y, byte[] destination, int offset) {
+            int pixel = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                int rgb = data[pixel + x];
+                destination[offset + x] = (byte) ((((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3);
+            }
+        }
+    }
+
+    /**
+     * Any other image, converted to RGB by the colour model of the image.
+     */
+    private static class Generic extends GrayscaleSource {
+
+        private final BufferedImage image;
+        private final int[] row;
+
+        Generic(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+            this.row = new int[width];
+        }
+
+        @Override
+        public void readRow(int y, byte[] destination, int offset) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                destination[offset + x] = (byte) ((((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package mb.sudoku.helpers;
+
+/**
+ * A perspective transform of the plane, the 3x3 matrix
+ * <pre>
+ *     | h0 h1 h2 |
+ *     | h3 h4 h5 |
+ *     | h6 h7 1  |
+ * </pre>
+ * mapping {@code (x, y)} to {@code ((h0 x + h1 y + h2) / w, (h3 x + h4 y + h5) / w)} with
+ * {@code w = h6 x + h7 y + 1}.
+ * <p/>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class Homography {
+
+    private final double[] h;
+
+    private Homography(double[] h) {
+        this.h = h;
+    }
+
+    /**
+     * Finds the homography mapping four points onto four other points, by solving the 8x8
+     * linear system with Gaussian elimination.
+     *
+     * @param from the points {x0, y0, x1, y1, x2, y2, x3, y3} to map
+     * @param to   the points {u0, v0, u1, v1, u2, v2, u3, v3} they are mapped onto
+     * @return the homography, or null if three of the points are on the same line
+     */
+    public static Homography fromPoints(double[] from, double[] to) {
+        /* 1. Every pair of points gives two equations, one for u and one for v */
+        double[][] system = new double[8][9];
+        for (int i = 0; i < 4; i++) {
+            double x = from[2 * i];
+            double y = from[2 * i + 1];
+            double u = to[2 * i];
+            double v = to[2 * i + 1];
+            double[] rowU = system[2 * i];
+            double[] rowV = system[2 * i + 1];
+            rowU[0] = x;
+            rowU[1] = y;
+            rowU[2] = 1;
+            rowU[6] = -u * x;
+            rowU[7] = -u * y;
+            rowU[8] = u;
+            rowV[3] = x;
+            rowV[4] = y;
+            rowV[5] = 1;
+            rowV[6] = -v * x;
+            rowV[7] = -v * y;
+            rowV[8] = v;
+        }
+
+        /* 2. Gauss-Jordan elimination with partial pivoting */
+        for (int column = 0; column < 8; column++) {
+            int pivot = column;
+            for (int r = column + 1; r < 8; r++) {
+                if (Math.abs(system[r][column]) > Math.abs(system[pivot][column])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(system[pivot][column]) < 1e-12) {
+                return null;
+            }
+            double[] swap = system[column];
+            system[column] = system[pivot];
+            system[pivot] = swap;
+            for (int r = 0; r < 8; r++) {
+                if (r == column) {
+                    continue;
+                }
+                double factor = system[r][column] / system[column][column];
+                for (int c = column; c < 9; c++) {
+                    system[r][c] -= factor * system[column][c];
+                }
+            }
+        }
+
+        double[] h = new double[8];
+        for (int i = 0; i < 8; i++) {
+            h[i] = system[i][8] / system[i][i];
+        }
+        return new Homography(h);
+    }
+
+    public double mapX(double x, double y) {
+        return (h[0] * x + h[1] * y + h[2]) / (h[6] * x + h[7] * y + 1);
+    }
+
+    public double mapY(double x, double y) {
+        return (h[3] * x + h[4] * y + h[5]) / (h[6] * x + h[7] * y + 1);
+    }
+
+    /**
+     * Gets a copy of the first 8 coefficients of the matrix, row by row, the last one being 1.
+     */
+    public double[] getCoefficients() {
+        return h.clone();
+    }
+}
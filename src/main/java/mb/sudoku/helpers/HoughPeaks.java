@@ -0,0 +1,108 @@
+package mb.sudoku.helpers;
+
+import java.util.Arrays;
+
+/**
+ * The peaks found in a hough array, stored in parallel primitive arrays.
+ * <p/>
+ * Peak {@code i} is the line with angle {@code getThetas()[i]} in radians and radius
+ * {@code getRhos()[i]}, the radius being the row of the hough array like in
+ * {@link HoughLine#getR()}. The arrays may be longer than {@link #size()}, only the
+ * first {@code size()} values are peaks. A HoughPeaks can be passed back to
+ * {@link HoughTransform#getPeaks(int, int, HoughPeaks)} to reuse its arrays.
+ */
+public class HoughPeaks {
+
+    private float[] thetas = new float[64];
+    private float[] rhos = new float[64];
+    private int[] votes = new int[64];
+
+    // the theta of every peak as an index of the hough array
+    private int[] thetaIndexes = new int[64];
+
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public float[] getThetas() {
+        return thetas;
+    }
+
+    public float[] getRhos() {
+        return rhos;
+    }
+
+    public int[] getVotes() {
+        return votes;
+    }
+
+    /**
+     * Gets the peaks as {@link HoughLine}s, in the same order.
+     */
+    public HoughLine[] toLines() {
+        HoughLine[] lines = new HoughLine[size];
+        for (int i = 0; i < size; i++) {
+            lines[i] = new HoughLine(thetas[i], rhos[i]);
+        }
+        return lines;
+    }
+
+    int getThetaIndex(int i) {
+        return thetaIndexes[i];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(int thetaIndex, double thetaStep, int rhoIndex, int peakVotes) {
+        if (size == thetas.length) {
+            int capacity = 2 * size;
+            thetas = Arrays.copyOf(thetas, capacity);
+            rhos = Arrays.copyOf(rhos, capacity);
+            votes = Arrays.copyOf(votes, capacity);
+            thetaIndexes = Arrays.copyOf(thetaIndexes, capacity);
+        }
+        thetas[size] = (float) (thetaIndex * thetaStep);
+        rhos[size] = rhoIndex;
+        votes[size] = peakVotes;
+        thetaIndexes[size] = thetaIndex;
+        size++;
+    }
+
+    /**
+     * Keeps the maxPeaks peaks with the most votes, in their original order. Between peaks
+     * with the same votes the first ones are kept.
+     */
+    void keepStrongest(int maxPeaks) {
+        if (size <= maxPeaks) {
+            return;
+        }
+        if (maxPeaks <= 0) {
+            size = 0;
+            return;
+        }
+        int[] sorted = Arrays.copyOf(votes, size);
+        Arrays.sort(sorted);
+        int weakest = sorted[size - maxPeaks];
+        int weakestKept = maxPeaks;
+        for (int i = size - maxPeaks; i < size; i++) {
+            if (sorted[i] > weakest) {
+                weakestKept--;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (votes[i] > weakest || (votes[i] == weakest && weakestKept-- > 0)) {
+                thetas[kept] = thetas[i];
+                rhos[kept] = rhos[i];
+                votes[kept] = votes[i];
+                thetaIndexes[kept] = thetaIndexes[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+}
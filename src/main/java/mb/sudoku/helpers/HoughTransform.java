@@ -3,7 +3,10 @@ package mb.sudoku.helpers;
 
 import java.awt.image.BufferedImage;
 import java.awt.*;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * <p/>
@@ -41,29 +44,57 @@ import java.util.Vector;
  * local peaks in the array. The higher the peak the more values of x and y crossed along that curve,
  * so high peaks give good indications of a line.
  * </p>
+ * <p/>
+ * In {@link ExecutionMode#PARALLEL} mode the voting of {@link #addPoints(java.awt.image.BufferedImage)}
+ * is split between the workers of the common fork-join pool, either by theta (every worker fills its own
+ * rows of the hough array) or by point (every worker fills its own hough array and they are summed at the
+ * end). The votes, and so the lines, are exactly the same as in {@link ExecutionMode#SERIAL} mode.
+ * </p>
  *
  * @author Olly Oechsle, University of Essex
  */
 
-public class HoughTransform extends Thread {
+public class HoughTransform {
 
     // The size of the neighbourhood in which to search for other local maxima
     final int neighbourhoodSize = 4;
 
     // How many discrete values of theta shall we check?
-    final int maxTheta = 180;
+    protected int maxTheta;
 
     // Using maxTheta, work out the step
-    final double thetaStep = Math.PI / maxTheta;
+    protected double thetaStep;
+
+    // the theta values voted, one row of the hough array for each of them in increasing order
+    protected int[] rowTheta;
+
+    // the number of theta values voted
+    protected int rows;
+
+    // the row of the hough array of every theta value, -1 for the values that are not voted
+    protected int[] thetaRow;
+
+    // the theta windows of the current configuration, pairs of angles in degrees, the first windowCount values
+    private double[] windows = new double[0];
+    private int windowCount;
+
+    // whether every theta value is voted, used while configuring
+    private boolean[] voted = new boolean[0];
+
+    // the precision of the fixed point sin and cos tables, in bits
+    static final int FIXED_SHIFT = 15;
+
+    // added to negative fixed point values so that shifting truncates towards zero like a cast
+    static final int FIXED_ROUND = (1 << FIXED_SHIFT) - 1;
 
     // the width and height of the image
     protected int width, height;
 
-    // the hough array
-    protected int[][] houghArray;
+    // the hough array, one row of doubleHeight values for every voted theta
+    protected int[] houghArray;
 
     // the coordinates of the centre of the image
-    protected float centerX, centerY;
+    protected int centerX, centerY;
 
     // the height of the hough array
     protected int houghHeight;
@@ -74,30 +105,179 @@ public class HoughTransform extends Thread {
     // the number of points that have been added
     protected int numPoints;
 
-    // cache of values of sin and cos for different theta values. Has a significant performance improvement.
-    private double[] sinCache;
-    private double[] cosCache;
+    // the highest value of every row of the hough array, kept up to date while voting
+    private int[] rowMax = new int[0];
+
+    // the maximum of every cell and its neighbours along r, used when searching for peaks
+    private int[] neighbourhoodMax = new int[0];
+
+    // the cells of the peaks found so far while searching for peaks, cleared once the search is done
+    private boolean[] peakCells = new boolean[0];
+
+    // the running maxima of the blocks of a row, used to compute neighbourhoodMax
+    private int[] blockForward = new int[0];
+    private int[] blockBackward = new int[0];
+
+    // cache of values of sin and cos for different theta values, in fixed point. Has a significant performance improvement.
+    private int[] sinCache;
+    private int[] cosCache;
+
+    // the sin and cos tables only depend on maxTheta, so they are shared by all the transforms, indexed by
+    // maxTheta. The array is replaced by a longer copy when a new maxTheta is needed, so it is read without lock
+    private static volatile int[][][] trigTablesByTheta = new int[0][][];
+
+    // the transform handed out by acquire to each thread
+    private static final ThreadLocal<HoughTransform> POOL = new ThreadLocal<HoughTransform>();
+
+    // whether addPoints votes on the calling thread or on the common fork-join pool
+    private ExecutionMode executionMode = ExecutionMode.SERIAL;
+
+    // below this many votes the parallel mode is not worth the scheduling
+    static final long PARALLEL_MIN_VOTES = 1 << 20;
+
+    // the private accumulators of the parallel point voting, kept for the next image
+    private int[][] partialArrays = new int[0][];
+
+    // the edge points found by addPoints, packed as (y << 16) | x
+    private int[] points = new int[0];
+
+    // the point voted by addPoint, voted directly on the calling thread
+    private final int[] singlePoint = new int[1];
+
+    // the number of edge points of the last image added
+    private int pointCount;
+
+    // a row of the image being scanned for edge points
+    private byte[] row = new byte[0];
 
     /**
      * Initialises the hough transform. The dimensions of the input image are needed
      * in order to initialise the hough array.
      *
-     * @param width  The width of the input image
-     * @param height The height of the input image
+     * @param width  The width of the input image, at most 65535
+     * @param height The height of the input image, at most 65535
      */
     public HoughTransform(int width, int height) {
+        this(width, height, 180);
+    }
 
-        this.width = width;
-        this.height = height;
+    /**
+     * Initialises the hough transform with the given angular resolution, voting only
+     * the theta values inside the given windows.
+     *
+     * @param width    The width of the input image, at most 65535
+     * @param height   The height of the input image, at most 65535
+     * @param maxTheta The number of theta values in [0, 180) degrees, 180 for a step of 1 degree
+     * @param windows  Pairs of angles in degrees, each pair being a window [from, to] to vote in,
+     *                 e.g. {@code -5, 5, 85, 95} for the lines close to vertical and horizontal.
+     *                 Angles wrap around at 180 degrees. Without windows every theta value is voted.
+     */
+    public HoughTransform(int width, int height, int maxTheta, double... windows) {
+        reset(width, height, maxTheta, windows);
+    }
 
-        initialise();
+    /**
+     * Gets the hough transform of the calling thread, reset for an image of the given size.
+     * <p/>
+     * The transform, its hough array and its buffers are kept between calls, so once the
+     * thread has processed an image of this size no more memory is allocated. The transform
+     * must not be used after the next call of this method on the same thread, and must not
+     * be passed to other threads.
+     * <p/>
+     * Only a thread that lives for many images, such as a thread of a pipeline stage or of the
+     * server workers, gains anything: a virtual or short lived thread allocates a new transform
+     * every time, and an idle thread keeps its transform until it ends.
+     *
+     * @param width  The width of the input image, at most 65535
+     * @param height The height of the input image, at most 65535
+     */
+    public static HoughTransform acquire(int width, int height) {
+        return acquire(width, height, 180);
+    }
 
+    /**
+     * Gets the hough transform of the calling thread, reset for an image of the given size
+     * with the given angular resolution and theta windows.
+     * <p/>
+     * The execution mode is reset to {@link ExecutionMode#SERIAL}, whatever the previous user
+     * of the transform set; call {@link #setExecutionMode(ExecutionMode)} afterwards to vote on
+     * all the cores.
+     *
+     * @see #acquire(int, int)
+     * @see #HoughTransform(int, int, int, double...)
+     */
+    public static HoughTransform acquire(int width, int height, int maxTheta, double... windows) {
+        HoughTransform houghTransform = POOL.get();
+        if (houghTransform == null) {
+            houghTransform = new HoughTransform(width, height, maxTheta, windows);
+            POOL.set(houghTransform);
+        } else {
+            houghTransform.reset(width, height, maxTheta, windows);
+        }
+        houghTransform.setExecutionMode(ExecutionMode.SERIAL);
+        return houghTransform;
+    }
+
+    /**
+     * Gets the fixed point sin and cos tables for the given number of theta values,
+     * computing them the first time they are needed.
+     */
+    private static int[][] trigTables(int maxTheta) {
+        int[][][] cached = trigTablesByTheta;
+        if (maxTheta < cached.length && cached[maxTheta] != null) {
+            return cached[maxTheta];
+        }
+        synchronized (HoughTransform.class) {
+            cached = Arrays.copyOf(trigTablesByTheta, Math.max(trigTablesByTheta.length, maxTheta + 1));
+            if (cached[maxTheta] == null) {
+                double thetaStep = Math.PI / maxTheta;
+                int[][] tables = new int[2][maxTheta];
+                for (int t = 0; t < maxTheta; t++) {
+                    double realTheta = t * thetaStep;
+                    tables[0][t] = (int) Math.round(Math.sin(realTheta) * (1 << FIXED_SHIFT));
+                    tables[1][t] = (int) Math.round(Math.cos(realTheta) * (1 << FIXED_SHIFT));
+                }
+                cached[maxTheta] = tables;
+                trigTablesByTheta = cached;
+            }
+            return cached[maxTheta];
+        }
+    }
+
+    /**
+     * Sets whether {@link #addPoints(java.awt.image.BufferedImage)} votes on the calling thread
+     * or on all the cores. The default is {@link ExecutionMode#SERIAL}.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
     }
 
     public int getVotes(double theta, double rho) {
         int t = (int) (theta / thetaStep);
         int r = (int) rho;
-        return houghArray[t][r];
+        return getValue(t, r);
+    }
+
+    /**
+     * Gets the votes of the cell, 0 for the theta values that are not voted.
+     */
+    private int getValue(int t, int r) {
+        int row = thetaRow[t];
+        return row < 0 ? 0 : houghArray[row * doubleHeight + r];
+    }
+
+    /**
+     * Gets the theta values voted, in increasing order.
+     */
+    public int[] getThetas() {
+        return Arrays.copyOf(rowTheta, rows);
+    }
+
+    /**
+     * Gets the step between two theta values, in radians.
+     */
+    public double getThetaStep() {
+        return thetaStep;
     }
 
     /**
@@ -106,6 +286,44 @@ public class HoughTransform extends Thread {
      * image (although that image must have the same width and height)
      */
     public void initialise() {
+        reset(width, height);
+    }
+
+    /**
+     * Resets the transform for an image of the given size. The hough array is only
+     * reallocated if it is too small for the new size, otherwise it is just cleared.
+     *
+     * @param width  The width of the input image, at most 65535
+     * @param height The height of the input image, at most 65535
+     */
+    public void reset(int width, int height) {
+        resize(width, height);
+    }
+
+    /**
+     * Resets the transform for an image of the given size, with the given angular
+     * resolution and theta windows.
+     *
+     * @see #HoughTransform(int, int, int, double...)
+     */
+    public void reset(int width, int height, int maxTheta, double... windows) {
+
+        if (windows.length % 2 != 0) {
+            throw new IllegalArgumentException("Theta windows must be pairs of angles");
+        }
+        if (maxTheta != this.maxTheta || !sameWindows(windows)) {
+            configure(maxTheta, windows);
+        }
+        resize(width, height);
+    }
+
+    /**
+     * Resets the transform for an image of the given size, keeping the theta values voted.
+     */
+    private void resize(int width, int height) {
+
+        this.width = width;
+        this.height = height;
 
         // Calculate the maximum height the hough array needs to have
         houghHeight = (int) (Math.sqrt(2) * Math.max(height, width)) / 2;
@@ -113,8 +331,13 @@ public class HoughTransform extends Thread {
         // Double the height of the hough array to cope with negative r values
         doubleHeight = 2 * houghHeight;
 
-        // Create the hough array
-        houghArray = new int[maxTheta][doubleHeight];
+        // Create or clear the hough array
+        int size = rows * doubleHeight;
+        if (houghArray == null || houghArray.length < size) {
+            houghArray = new int[size];
+        } else {
+            Arrays.fill(houghArray, 0, size, 0);
+        }
 
         // Find edge points and vote in array
         centerX = width / 2;
@@ -123,29 +346,65 @@ public class HoughTransform extends Thread {
         // Count how many points there are
         numPoints = 0;
 
-        // cache the values of sin and cos for faster processing
-        sinCache = new double[maxTheta];
-        cosCache = sinCache.clone();
-        for (int t = 0; t < maxTheta; t++) {
-            double realTheta = t * thetaStep;
-            sinCache[t] = Math.sin(realTheta);
-            cosCache[t] = Math.cos(realTheta);
+        // No votes yet
+        if (rowMax.length < rows) {
+            rowMax = new int[maxTheta];
+        } else {
+            Arrays.fill(rowMax, 0, rows, 0);
+        }
+    }
+
+    private boolean sameWindows(double[] windows) {
+        if (windows.length != windowCount) {
+            return false;
+        }
+        for (int i = 0; i < windowCount; i++) {
+            if (Double.compare(windows[i], this.windows[i]) != 0) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * Adds points from an image. The image is assumed to be greyscale black and white, so all pixels that are
-     * not black are counted as edges. The image should have the same dimensions as the one passed to the constructor.
+     * Sets the angular resolution and the theta values voted. The tables are filled in place, so
+     * changing the windows, as every image and every refined corner does, allocates nothing once
+     * the transform has been configured with as many theta values and windows.
      */
-    public void addPoints(BufferedImage image) {
+    private void configure(int maxTheta, double[] windows) {
+        this.maxTheta = maxTheta;
+        this.thetaStep = Math.PI / maxTheta;
+        if (this.windows.length < windows.length) {
+            this.windows = new double[windows.length];
+        }
+        System.arraycopy(windows, 0, this.windows, 0, windows.length);
+        windowCount = windows.length;
 
-        // Now find edge points and update the hough array
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                // Find non-black pixels
-                if ((image.getRGB(x, y) & 0x000000ff) != 0) {
-                    addPoint(x, y);
-                }
+        int[][] tables = trigTables(maxTheta);
+        sinCache = tables[0];
+        cosCache = tables[1];
+
+        if (voted.length < maxTheta) {
+            voted = new boolean[maxTheta];
+            rowTheta = new int[maxTheta];
+            thetaRow = new int[maxTheta];
+        }
+        Arrays.fill(voted, 0, maxTheta, windows.length == 0);
+        for (int i = 0; i < windows.length; i += 2) {
+            int from = (int) Math.ceil(windows[i] * maxTheta / 180 - 1e-9);
+            int to = (int) Math.floor(windows[i + 1] * maxTheta / 180 + 1e-9);
+            for (int t = from; t <= to && t < from + maxTheta; t++) {
+                voted[((t % maxTheta) + maxTheta) % maxTheta] = true;
+            }
+        }
+
+        rows = 0;
+        for (int t = 0; t < maxTheta; t++) {
+            if (voted[t]) {
+                rowTheta[rows] = t;
+                thetaRow[t] = rows++;
+            } else {
+                thetaRow[t] = -1;
             }
         }
     }
@@ -154,66 +413,299 @@ public class HoughTransform extends Thread {
      * Adds points from an image. The image is assumed to be greyscale black and white, so all pixels that are
      * not black are counted as edges. The image should have the same dimensions as the one passed to the constructor.
      */
+    public void addPoints(BufferedImage image) {
+        addPointsForThetas(image, 0, maxTheta);
+    }
+
+    /**
+     * Adds points from an image, voting only the thetas between 60 and 120 degrees. The image is assumed to be
+     * greyscale black and white, so all pixels that are not black are counted as edges. The image should have the
+     * same dimensions as the one passed to the constructor.
+     */
     public void addHorizontalPoints(BufferedImage image) {
+        addPointsForThetas(image, maxTheta / 3, 2 * maxTheta / 3);
+    }
+
+    /**
+     * Adds the points of an image limited by the theta indexes theta1 and theta2, not angles, see
+     * {@link #addPoints(java.awt.image.BufferedImage, double, double)} for those. The image is read row by
+     * row into a list of edge points, then every theta row of the hough array is voted for all the points at once.
+     */
+    private void addPointsForThetas(BufferedImage image, int theta1, int theta2) {
+        pointCount = findEdgePoints(image);
+        vote(points, pointCount, theta1, theta2);
+        numPoints += pointCount;
+    }
+
+    /**
+     * Adds points from an image, voting only the thetas between the two angles. The image is assumed to be
+     * greyscale black and white, so all pixels that are not black are counted as edges. The image should
+     * have the same dimensions as the one passed to the constructor.
+     *
+     * @param from The first angle voted, in degrees
+     * @param to   The last angle voted, in degrees, angles wrap around at 180 degrees
+     */
+    public void addPoints(BufferedImage image, double from, double to) {
+        pointCount = findEdgePoints(image);
+        numPoints += pointCount;
+        addVotes(from, to);
+    }
+
+    /**
+     * Votes the points of the last image added again, for the thetas between the two angles. The image
+     * does not have to be scanned a second time, so the thetas needed can be chosen from the lines found
+     * by a first vote, e.g. the vertical lines once the angle of the horizontal ones is known. The thetas
+     * must not have been voted already.
+     *
+     * @param from The first angle voted, in degrees
+     * @param to   The last angle voted, in degrees, angles wrap around at 180 degrees
+     */
+    public void addVotes(double from, double to) {
+        int theta1 = (int) Math.ceil(from * maxTheta / 180 - 1e-9);
+        int theta2 = (int) Math.floor(to * maxTheta / 180 + 1e-9) + 1;
+        if (theta2 - theta1 >= maxTheta) {
+            vote(points, pointCount, 0, maxTheta);
+            return;
+        }
+        int shift = ((theta1 % maxTheta) + maxTheta) % maxTheta - theta1;
+        theta1 += shift;
+        theta2 += shift;
+        if (theta2 <= maxTheta) {
+            vote(points, pointCount, theta1, theta2);
+        } else {
+            vote(points, pointCount, theta1, maxTheta);
+            vote(points, pointCount, 0, theta2 - maxTheta);
+        }
+    }
 
-        // Now find edge points and update the hough array
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                // Find non-black pixels
-                if ((image.getRGB(x, y) & 0x000000ff) != 0) {
-                    addPoint(x, y, 60, 120);
+    /**
+     * Collects the non-black pixels of the image into the points array.
+     *
+     * @return the number of points found
+     */
+    private int findEdgePoints(BufferedImage image) {
+        GrayscaleSource source = GrayscaleSource.of(image);
+        int imageWidth = source.getWidth();
+        int imageHeight = source.getHeight();
+        if (row.length < imageWidth) {
+            row = new byte[imageWidth];
+        }
+
+        int count = 0;
+        for (int y = 0; y < imageHeight; y++) {
+            source.readRow(y, row, 0);
+            for (int x = 0; x < imageWidth; x++) {
+                if (row[x] != 0) {
+                    if (count == points.length) {
+                        points = Arrays.copyOf(points, Math.max(1024, 2 * count));
+                    }
+                    points[count++] = (y << 16) | x;
                 }
             }
         }
+        return count;
     }
 
     /**
-     * Adds a single point to the hough transform. You can use this method directly
-     * if your data isn't represented as a buffered image.
+     * Votes the packed points for every theta in [theta1, theta2), splitting the work between
+     * the workers of the common fork-join pool in parallel mode.
+     * <p/>
+     * Splitting by theta needs no merge, so it is used whenever there are enough theta rows to
+     * keep all the workers busy. With few rows and many points, every worker votes a slice of
+     * the points into its own accumulator and the accumulators are summed.
      */
-    public void addPoint(int x, int y) {
+    private void vote(int[] points, int count, int theta1, int theta2) {
+        int row1 = firstRow(theta1);
+        int row2 = firstRow(theta2);
+        int thetas = row2 - row1;
+        int workers = ForkJoinPool.commonPool().getParallelism();
+        if (executionMode == ExecutionMode.SERIAL || workers < 2 || (long) count * thetas < PARALLEL_MIN_VOTES) {
+            vote(houghArray, 0, rowMax, points, 0, count, row1, row2);
+        } else if (thetas >= 4 * workers || count < workers * doubleHeight) {
+            ForkJoinPool.commonPool().invoke(new ThetaVotes(points, count, row1, row2,
+                    Math.max(1, thetas / (4 * workers))));
+        } else {
+            votePointSlices(points, count, row1, row2, workers);
+        }
+    }
 
-        // Go through each value of theta
-        for (int t = 0; t < maxTheta; t++) {
+    /**
+     * Gets the first row of the hough array whose theta is at least the given one.
+     */
+    private int firstRow(int theta) {
+        int row = 0;
+        while (row < rows && rowTheta[row] < theta) {
+            row++;
+        }
+        return row;
+    }
 
-            //Work out the r values for each theta step
-            int r = (int) (((x - centerX) * cosCache[t]) + ((y - centerY) * sinCache[t]));
+    /**
+     * Votes one slice of the points per worker, each into its own accumulator holding the rows
+     * [row1, row2), and adds the accumulators to the hough array.
+     */
+    private void votePointSlices(int[] points, int count, int row1, int row2, int workers) {
+        int base = row1 * doubleHeight;
+        int size = (row2 - row1) * doubleHeight;
+        if (partialArrays.length < workers) {
+            partialArrays = Arrays.copyOf(partialArrays, workers);
+        }
+        PointVotes[] tasks = new PointVotes[workers];
+        for (int i = 0; i < workers; i++) {
+            if (partialArrays[i] == null || partialArrays[i].length < size) {
+                partialArrays[i] = new int[size];
+            } else {
+                Arrays.fill(partialArrays[i], 0, size, 0);
+            }
+            tasks[i] = new PointVotes(partialArrays[i], base, points,
+                    (int) ((long) count * i / workers), (int) ((long) count * (i + 1) / workers), row1, row2);
+        }
+        ForkJoinPool.commonPool().invoke(new AllPointVotes(tasks));
+        for (int row = row1; row < row2; row++) {
+            int offset = row * doubleHeight;
+            int max = 0;
+            for (int r = offset; r < offset + doubleHeight; r++) {
+                int value = houghArray[r];
+                for (PointVotes task : tasks) {
+                    value += task.accumulator[r - base];
+                }
+                houghArray[r] = value;
+                if (value > max) max = value;
+            }
+            rowMax[row] = max;
+        }
+    }
 
-            // this copes with negative values of r
-            r += houghHeight;
+    /**
+     * Votes the packed points [from, to) for the theta of every row in [row1, row2). The accumulator
+     * is walked one theta row at a time, so all the increments for a row hit the same small part of it.
+     *
+     * @param accumulator the array receiving the votes
+     * @param base        the index in the hough array of the first value of the accumulator
+     * @param maxima      the highest value of every row, updated as the votes are added, or null
+     */
+    private void vote(int[] accumulator, int base, int[] maxima, int[] points, int from, int to, int row1, int row2) {
+        for (int row = row1; row < row2; row++) {
+            int t = rowTheta[row];
+            int cos = cosCache[t];
+            int sin = sinCache[t];
+            int offset = row * doubleHeight - base;
+            int max = 0;
+            for (int i = from; i < to; i++) {
+                int point = points[i];
+
+                //Work out the r values for each theta step
+                int r = ((point & 0xffff) - centerX) * cos + ((point >>> 16) - centerY) * sin;
+                r = (r + ((r >> 31) & FIXED_ROUND)) >> FIXED_SHIFT;
+
+                // this copes with negative values of r
+                r += houghHeight;
+
+                if (r < 0 || r >= doubleHeight) continue;
+
+                // Increment the hough array
+                int votes = ++accumulator[offset + r];
+                if (votes > max) max = votes;
+            }
+            if (maxima != null && max > maxima[row]) {
+                maxima[row] = max;
+            }
+        }
+    }
+
+    /**
+     * Votes all the points for the rows [row1, row2), splitting the rows in halves
+     * until there are at most grain of them.
+     */
+    private class ThetaVotes extends RecursiveAction {
 
-            if (r < 0 || r >= doubleHeight) continue;
+        private static final long serialVersionUID = 1L;
 
-            // Increment the hough array
-            houghArray[t][r]++;
+        private final int[] points;
+        private final int count, row1, row2, grain;
 
+        ThetaVotes(int[] points, int count, int row1, int row2, int grain) {
+            this.points = points;
+            this.count = count;
+            this.row1 = row1;
+            this.row2 = row2;
+            this.grain = grain;
         }
 
-        numPoints++;
+        @Override
+        protected void compute() {
+            if (row2 - row1 <= grain) {
+                vote(houghArray, 0, rowMax, points, 0, count, row1, row2);
+                return;
+            }
+            int middle = (row1 + row2) >>> 1;
+            invokeAll(new ThetaVotes(points, count, row1, middle, grain),
+                    new ThetaVotes(points, count, middle, row2, grain));
+        }
     }
 
     /**
-     * Adds a single point to the hough transform limited by theta1 and theta2. You can use this method directly
-     * if your data isn't represented as a buffered image.
+     * Runs the slices of the points together, from a worker of the pool.
      */
-    public void addPoint(int x, int y ,int theta1, int theta2) {
+    private static class AllPointVotes extends RecursiveAction {
 
-        // Go through each value of theta
-        for (int t = theta1; t < theta2; t++) {
+        private static final long serialVersionUID = 1L;
 
-            //Work out the r values for each theta step
-            int r = (int) (((x - centerX) * cosCache[t]) + ((y - centerY) * sinCache[t]));
+        private final PointVotes[] tasks;
 
-            // this copes with negative values of r
-            r += houghHeight;
+        AllPointVotes(PointVotes[] tasks) {
+            this.tasks = tasks;
+        }
 
-            if (r < 0 || r >= doubleHeight) continue;
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
 
-            // Increment the hough array
-            houghArray[t][r]++;
+    /**
+     * Votes the points [from, to) into a private accumulator.
+     */
+    private class PointVotes extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] accumulator;
+        private final int base;
+        private final int[] points;
+        private final int from, to, row1, row2;
+
+        PointVotes(int[] accumulator, int base, int[] points, int from, int to, int row1, int row2) {
+            this.accumulator = accumulator;
+            this.base = base;
+            this.points = points;
+            this.from = from;
+            this.to = to;
+            this.row1 = row1;
+            this.row2 = row2;
+        }
 
+        @Override
+        protected void compute() {
+            vote(accumulator, base, null, points, from, to, row1, row2);
         }
+    }
+
+    /**
+     * Adds a single point to the hough transform. You can use this method directly
+     * if your data isn't represented as a buffered image.
+     */
+    public void addPoint(int x, int y) {
+        addPoint(x, y, 0, maxTheta);
+    }
 
+    /**
+     * Adds a single point to the hough transform limited by theta1 and theta2. You can use this method directly
+     * if your data isn't represented as a buffered image.
+     */
+    public void addPoint(int x, int y ,int theta1, int theta2) {
+        singlePoint[0] = (y << 16) | x;
+        vote(houghArray, 0, rowMax, singlePoint, 0, 1, firstRow(theta1), firstRow(theta2));
         numPoints++;
     }
 
@@ -222,50 +714,127 @@ public class HoughTransform extends Thread {
      * of HoughLine objects, which can be used to draw on the
      *
      * @param threshold The percentage threshold above which lines are determined from the hough array
+     * @see #getPeaks(int, int, HoughPeaks)
      */
     public Vector<HoughLine> getLines(int threshold) {
 
+        HoughPeaks peaks = getPeaks(threshold, Integer.MAX_VALUE, new HoughPeaks());
+
         // Initialise the vector of lines that we'll return
-        Vector<HoughLine> lines = new Vector<HoughLine>(20);
+        Vector<HoughLine> lines = new Vector<HoughLine>(Math.max(20, peaks.size()));
+        for (int i = 0; i < peaks.size(); i++) {
+            lines.add(new HoughLine(peaks.getThetaIndex(i) * thetaStep, peaks.getRhos()[i]));
+        }
+        return lines;
+    }
+
+    /**
+     * Once points have been added in some way this method extracts the peaks of the hough array, the
+     * cells above the threshold that have the most votes in the neighbourhood around them.
+     * <p/>
+     * The rows whose highest value, tracked while voting, is not above the threshold are skipped. For the
+     * others the maximum of the neighbourhood along r is computed with a running max filter, then combined
+     * across the neighbouring theta rows, so every cell is compared with a handful of values instead of the
+     * whole neighbourhood. When several cells of a plateau have the same votes only the first one is a peak;
+     * the peaks found are marked in a map of the hough array, so telling whether one is near a cell only
+     * looks at the neighbourhood of the cell, whatever the number of peaks.
+     *
+     * @param threshold The votes above which cells can be peaks
+     * @param maxPeaks  The maximum number of peaks returned, the ones with the most votes are kept
+     * @param peaks     The peaks object to fill, its arrays are reused
+     * @return the peaks, ordered by theta then by r
+     */
+    public HoughPeaks getPeaks(int threshold, int maxPeaks, HoughPeaks peaks) {
+
+        peaks.clear();
 
         // Only proceed if the hough array is not empty
-        if (numPoints == 0) return lines;
+        if (numPoints == 0) return peaks;
 
-        // Search for local peaks above threshold to draw
-        for (int t = 0; t < maxTheta; t++) {
+        if (neighbourhoodMax.length < rows * doubleHeight) {
+            neighbourhoodMax = new int[rows * doubleHeight];
+            peakCells = new boolean[rows * doubleHeight];
+        }
+
+        // Find the maximum along r around every cell of the rows that can have peaks
+        for (int row = 0; row < rows; row++) {
+            if (rowMax[row] > threshold) {
+                runningMax(row * doubleHeight);
+            }
+        }
+
+        // Search for local peaks above threshold
+        for (int row = 0; row < rows; row++) {
+            if (rowMax[row] <= threshold) continue;
+            int t = rowTheta[row];
+            int offset = row * doubleHeight;
             loop:
             for (int r = neighbourhoodSize; r < doubleHeight - neighbourhoodSize; r++) {
 
-                // Only consider points above threshold
-                if (houghArray[t][r] > threshold) {
-
-                    int peak = houghArray[t][r];
-
-                    // Check that this peak is indeed the local maxima
-                    for (int dx = -neighbourhoodSize; dx <= neighbourhoodSize; dx++) {
-                        for (int dy = -neighbourhoodSize; dy <= neighbourhoodSize; dy++) {
-                            int dt = t + dx;
-                            int dr = r + dy;
-                            if (dt < 0) dt = dt + maxTheta;
-                            else if (dt >= maxTheta) dt = dt - maxTheta;
-                            if (houghArray[dt][dr] > peak) {
-                                // found a bigger point nearby, skip
-                                continue loop;
-                            }
-                        }
+                // Only consider points above threshold that are the highest along r
+                int peak = houghArray[offset + r];
+                if (peak <= threshold || neighbourhoodMax[offset + r] > peak) continue;
+
+                // Check that this peak is indeed the local maxima, rows without values above
+                // the threshold can't have a bigger point
+                for (int dt = t - neighbourhoodSize; dt <= t + neighbourhoodSize; dt++) {
+                    int neighbour = thetaRow[(dt + maxTheta) % maxTheta];
+                    if (neighbour < 0 || neighbour == row || rowMax[neighbour] <= threshold) continue;
+                    if (neighbourhoodMax[neighbour * doubleHeight + r] > peak) {
+                        // found a bigger point nearby, skip
+                        continue loop;
                     }
+                }
 
-                    // calculate the true value of theta
-                    double theta = t * thetaStep;
-
-                    // add the line to the vector
-                    lines.add(new HoughLine(theta, r));
-
+                // Skip the other cells of a plateau: a peak with the same votes was found nearby.
+                // Only the rows holding the same votes around r can have one
+                for (int dt = t - neighbourhoodSize; dt <= t + neighbourhoodSize; dt++) {
+                    int neighbour = thetaRow[(dt + maxTheta) % maxTheta];
+                    if (neighbour < 0 || rowMax[neighbour] < peak) continue;
+                    int neighbourOffset = neighbour * doubleHeight;
+                    if (neighbourhoodMax[neighbourOffset + r] != peak) continue;
+                    for (int dr = r - neighbourhoodSize; dr <= r + neighbourhoodSize; dr++) {
+                        if (peakCells[neighbourOffset + dr] && houghArray[neighbourOffset + dr] == peak) continue loop;
+                    }
                 }
+
+                peakCells[offset + r] = true;
+                peaks.add(t, thetaStep, r, peak);
             }
         }
 
-        return lines;
+        // Clear the cells of the peaks for the next search
+        for (int i = 0; i < peaks.size(); i++) {
+            peakCells[thetaRow[peaks.getThetaIndex(i)] * doubleHeight + (int) peaks.getRhos()[i]] = false;
+        }
+
+        peaks.keepStrongest(maxPeaks);
+        return peaks;
+    }
+
+    /**
+     * Computes the maximum of every cell of the row and its neighbours along r into neighbourhoodMax,
+     * using the van Herk / Gil-Werman algorithm: the row is cut in blocks as long as the neighbourhood,
+     * and the maximum of any neighbourhood is the maximum of a block suffix and the next block prefix.
+     */
+    private void runningMax(int offset) {
+        int window = 2 * neighbourhoodSize + 1;
+        if (blockForward.length < doubleHeight) {
+            blockForward = new int[doubleHeight];
+            blockBackward = new int[doubleHeight];
+        }
+        for (int r = 0; r < doubleHeight; r++) {
+            int value = houghArray[offset + r];
+            blockForward[r] = r % window == 0 ? value : Math.max(blockForward[r - 1], value);
+        }
+        for (int r = doubleHeight - 1; r >= 0; r--) {
+            int value = houghArray[offset + r];
+            blockBackward[r] = r % window == window - 1 || r == doubleHeight - 1
+                    ? value : Math.max(blockBackward[r + 1], value);
+        }
+        for (int r = neighbourhoodSize; r < doubleHeight - neighbourhoodSize; r++) {
+            neighbourhoodMax[offset + r] = Math.max(blockBackward[r - neighbourhoodSize], blockForward[r + neighbourhoodSize]);
+        }
     }
 
     /**
@@ -273,11 +842,9 @@ public class HoughTransform extends Thread {
      */
     public int getHighestValue() {
         int max = 0;
-        for (int t = 0; t < maxTheta; t++) {
-            for (int r = 0; r < doubleHeight; r++) {
-                if (houghArray[t][r] > max) {
-                    max = houghArray[t][r];
-                }
+        for (int row = 0; row < rows; row++) {
+            if (rowMax[row] > max) {
+                max = rowMax[row];
             }
         }
         return max;
@@ -289,12 +856,12 @@ public class HoughTransform extends Thread {
     public HoughLine getHighestLine() {
         int max = 0;
         HoughLine line = new HoughLine(0, 0);
-        for (int t = 0; t < maxTheta; t++) {
+        for (int row = 0; row < rows; row++) {
             for (int r = 0; r < doubleHeight; r++) {
-                if (houghArray[t][r] > max) {
-                    max = houghArray[t][r];
+                if (houghArray[row * doubleHeight + r] > max) {
+                    max = houghArray[row * doubleHeight + r];
                     line.r = r;
-                    line.theta = t;
+                    line.theta = rowTheta[row];
                 }
             }
         }
@@ -309,7 +876,7 @@ public class HoughTransform extends Thread {
         BufferedImage image = new BufferedImage(maxTheta, doubleHeight, BufferedImage.TYPE_INT_ARGB);
         for (int t = 0; t < maxTheta; t++) {
             for (int r = 0; r < doubleHeight; r++) {
-                double value = 255 * ((double) houghArray[t][r]) / max;
+                double value = 255 * ((double) getValue(t, r)) / max;
                 int v = 255 - (int) value;
                 int c = new Color(v, v, v).getRGB();
                 image.setRGB(t, r, c);
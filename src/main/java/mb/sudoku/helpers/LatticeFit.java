@@ -0,0 +1,347 @@
+package mb.sudoku.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Fits the 10 evenly spaced lines of a sudoku grid to a sorted {@link LineSet}.
+ * <p/>
+ * Every pair of lines is tried as two neighbouring lattice lines, or as lattice lines with a
+ * single missing line between them. From the pair the lattice is tracked outwards: the next
+ * line is expected one pitch further, is matched to the nearest line within
+ * {@code TOLERANCE * pitch} and, when found, updates the pitch. Letting the pitch follow the
+ * lines copes with the spacing growing across a grid seen in perspective. The 10 consecutive
+ * lattice lines matching the most lines are kept. The nearest line is found in constant time
+ * in a table built once per fit, so the fit costs {@code O(n^2 + range)} for n lines spread
+ * over range pixels, whatever lines it is given.
+ * <p/>
+ * The positions of the matched lines are then fitted by least squares with a quadratic of
+ * the lattice index. Lattice lines without a matching line, e.g. an outer border too faint to
+ * be detected, are replaced by a line at the fitted position, parallel to the nearest matched
+ * line. When no lattice matches at least {@code MIN_MATCHED} lines the fit fails right away and
+ * {@link #getStatus()} tells why.
+ */
+public class LatticeFit {
+
+    /**
+     * The outcome of a fit.
+     */
+    public enum Status {
+        FOUND,
+        // less than two lines were given, there is no pitch to try
+        TOO_FEW_LINES,
+        // more than MAX_LINES lines were given, the image is mostly noise
+        TOO_MANY_LINES,
+        // no lattice matched enough lines
+        NO_LATTICE
+    }
+
+    // the number of lines of a sudoku grid
+    public static final int LINES = 10;
+
+    // the fewest lattice lines that have to match a detected line
+    public static final int MIN_MATCHED = 6;
+
+    // the most lines a fit accepts
+    public static final int MAX_LINES = 256;
+
+    // the smallest distance between two grid lines, in pixels
+    public static final double MIN_PITCH = 8;
+
+    // the largest distance from its expected position a matched line can have, relative to the pitch
+    static final double TOLERANCE = 0.2;
+
+    // the slots tracked from a pair: the pair, a missing line between them and 9 lines on either side
+    private static final int SLOTS = 3 * LINES;
+
+    private final Status status;
+    private final double confidence;
+    private final int matched;
+    private final double[] positions = new double[LINES];
+    private final double[] thetas = new double[LINES];
+    private final double[] rhos = new double[LINES];
+    private final int[] lineIndexes = new int[LINES];
+
+    private LatticeFit(Status status) {
+        this.status = status;
+        this.confidence = 0;
+        this.matched = 0;
+        Arrays.fill(lineIndexes, -1);
+    }
+
+    private LatticeFit(LineSet lines, int[] lineIndexes, double score) {
+        this.status = Status.FOUND;
+        this.confidence = score / LINES;
+
+        /* 1. Fit p = a + b * m + c * m^2 to the matched lines */
+        double[][] normal = new double[3][4];
+        int count = 0;
+        for (int m = 0; m < LINES; m++) {
+            this.lineIndexes[m] = lineIndexes[m];
+            if (lineIndexes[m] < 0) {
+                continue;
+            }
+            double[] powers = {1, m, m * m};
+            double p = lines.getPosition(lineIndexes[m]);
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++) {
+                    normal[r][c] += powers[r] * powers[c];
+                }
+                normal[r][3] += powers[r] * p;
+            }
+            thetas[m] = lines.getTheta(lineIndexes[m]);
+            rhos[m] = lines.getR(lineIndexes[m]);
+            count++;
+        }
+        this.matched = count;
+        double[] coefficients = solve(normal);
+        for (int m = 0; m < LINES; m++) {
+            positions[m] = coefficients[0] + coefficients[1] * m + coefficients[2] * m * m;
+        }
+
+        /* 2. A missing line is parallel to the nearest matched one */
+        for (int m = 0; m < LINES; m++) {
+            if (lineIndexes[m] >= 0) {
+                continue;
+            }
+            int nearest = -1;
+            for (int d = 1; nearest < 0; d++) {
+                if (m - d >= 0 && lineIndexes[m - d] >= 0) {
+                    nearest = lineIndexes[m - d];
+                } else if (m + d < LINES && lineIndexes[m + d] >= 0) {
+                    nearest = lineIndexes[m + d];
+                }
+            }
+            thetas[m] = lines.getTheta(nearest);
+            rhos[m] = lines.radiusAt(positions[m], thetas[m]);
+        }
+    }
+
+    /**
+     * Fits the grid lattice to the lines.
+     *
+     * @param lines the lines, sorted by position
+     * @return the fit, check {@link #isFound()} before using it
+     */
+    public static LatticeFit fit(LineSet lines) {
+        int n = lines.size();
+        if (n < 2) {
+            return new LatticeFit(Status.TOO_FEW_LINES);
+        }
+        if (n > MAX_LINES) {
+            return new LatticeFit(Status.TOO_MANY_LINES);
+        }
+
+        /* 1. Build the table of the nearest line for every position */
+        int first = lines.getPosition(0);
+        int[] nearest = new int[lines.getPosition(n - 1) - first + 1];
+        int line = 0;
+        for (int p = 0; p < nearest.length; p++) {
+            while (line + 1 < n && Math.abs(lines.getPosition(line + 1) - first - p)
+                    < Math.abs(lines.getPosition(line) - first - p)) {
+                line++;
+            }
+            nearest[p] = line;
+        }
+
+        /* 2. Track the lattice from every pair of lines and keep the best 10 lines */
+        int[] slotLines = new int[SLOTS];
+        double[] slotScores = new double[SLOTS];
+        int[] best = new int[LINES];
+        Arrays.fill(best, -1);
+        double bestScore = 0;
+        for (int i = 0; i < n - 1; i++) {
+            for (int j = i + 1; j < n; j++) {
+                for (int span = 1; span <= 2; span++) {
+                    double pitch = (double) lines.distance(i, j) / span;
+                    if (pitch < MIN_PITCH) {
+                        break;
+                    }
+                    track(lines, nearest, i, j, span, slotLines, slotScores);
+
+                    // slide a window of 10 slots over the ones holding the pair
+                    int base = LINES;
+                    double score = 0;
+                    for (int s = base + span - LINES + 1; s <= base + span; s++) {
+                        score += slotScores[s];
+                    }
+                    for (int start = base + span - LINES + 1; start <= base; start++) {
+                        if (start > base + span - LINES + 1) {
+                            score += slotScores[start + LINES - 1] - slotScores[start - 1];
+                        }
+                        if (score > bestScore) {
+                            bestScore = score;
+                            System.arraycopy(slotLines, start, best, 0, LINES);
+                        }
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+        for (int m = 0; m < LINES; m++) {
+            if (best[m] >= 0) {
+                count++;
+            }
+        }
+        if (count < MIN_MATCHED) {
+            return new LatticeFit(Status.NO_LATTICE);
+        }
+        return new LatticeFit(lines, best, bestScore);
+    }
+
+    /**
+     * Tracks the lattice outwards from a pair of lines. Line i is put in slot {@code LINES}
+     * and line j in slot {@code LINES + span}, every slot receives the index of the line it
+     * matched, -1 for none, and a score between 0 and 1 depending on how close that line is.
+     * Tracking in a direction stops after two slots in a row without a line.
+     */
+    private static void track(LineSet lines, int[] nearest, int i, int j, int span,
+                              int[] slotLines, double[] slotScores) {
+        int base = LINES;
+        Arrays.fill(slotLines, -1);
+        Arrays.fill(slotScores, 0);
+        slotLines[base] = i;
+        slotLines[base + span] = j;
+        slotScores[base] = 1;
+        slotScores[base + span] = 1;
+        double pitch = (double) lines.distance(i, j) / span;
+
+        /* Forwards, from line j */
+        int lastSlot = base + span;
+        int lastLine = j;
+        double gap = pitch;
+        for (int s = lastSlot + 1; s < base + LINES && s - lastSlot <= 2; s++) {
+            double expected = lines.getPosition(lastLine) + gap * (s - lastSlot);
+            int found = nearestLine(lines, nearest, expected);
+            double residual = Math.abs(lines.getPosition(found) - expected);
+            if (found > lastLine && residual < TOLERANCE * gap) {
+                /* Scored against the gap the line was accepted with, then the gap follows it */
+                slotLines[s] = found;
+                slotScores[s] = 1 - residual / (TOLERANCE * gap);
+                gap = (double) (lines.getPosition(found) - lines.getPosition(lastLine)) / (s - lastSlot);
+                lastSlot = s;
+                lastLine = found;
+            }
+        }
+
+        /* Backwards, from line i */
+        lastSlot = base;
+        lastLine = i;
+        gap = pitch;
+        for (int s = lastSlot - 1; s > base + span - LINES && lastSlot - s <= 2; s--) {
+            double expected = lines.getPosition(lastLine) - gap * (lastSlot - s);
+            int found = nearestLine(lines, nearest, expected);
+            double residual = Math.abs(lines.getPosition(found) - expected);
+            if (found < lastLine && residual < TOLERANCE * gap) {
+                slotLines[s] = found;
+                slotScores[s] = 1 - residual / (TOLERANCE * gap);
+                gap = (double) (lines.getPosition(lastLine) - lines.getPosition(found)) / (lastSlot - s);
+                lastSlot = s;
+                lastLine = found;
+            }
+        }
+    }
+
+    private static int nearestLine(LineSet lines, int[] nearest, double position) {
+        int p = (int) Math.round(position) - lines.getPosition(0);
+        return nearest[p < 0 ? 0 : p >= nearest.length ? nearest.length - 1 : p];
+    }
+
+    /**
+     * Solves the 3x3 system held by the augmented matrix with Gaussian elimination.
+     */
+    private static double[] solve(double[][] matrix) {
+        int size = matrix.length;
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            for (int r = column + 1; r < size; r++) {
+                if (Math.abs(matrix[r][column]) > Math.abs(matrix[pivot][column])) {
+                    pivot = r;
+                }
+            }
+            double[] swap = matrix[column];
+            matrix[column] = matrix[pivot];
+            matrix[pivot] = swap;
+            for (int r = column + 1; r < size; r++) {
+                double factor = matrix[r][column] / matrix[column][column];
+                for (int c = column; c <= size; c++) {
+                    matrix[r][c] -= factor * matrix[column][c];
+                }
+            }
+        }
+        double[] solution = new double[size];
+        for (int r = size - 1; r >= 0; r--) {
+            double sum = matrix[r][size];
+            for (int c = r + 1; c < size; c++) {
+                sum -= matrix[r][c] * solution[c];
+            }
+            solution[r] = sum / matrix[r][r];
+        }
+        return solution;
+    }
+
+    public boolean isFound() {
+        return status == Status.FOUND;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the position of the first lattice line.
+     */
+    public double getOffset() {
+        return positions[0];
+    }
+
+    /**
+     * Gets the mean distance between two lattice lines.
+     */
+    public double getPitch() {
+        return (positions[LINES - 1] - positions[0]) / (LINES - 1);
+    }
+
+    /**
+     * Gets how well the lattice fits the lines, from 0 to 1, 1 meaning every lattice line
+     * matched a detected line at exactly the expected position.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Gets the number of lattice lines matched by a detected line.
+     */
+    public int getMatched() {
+        return matched;
+    }
+
+    /**
+     * Gets the fitted position of a lattice line.
+     */
+    public double getPosition(int m) {
+        return positions[m];
+    }
+
+    /**
+     * Gets the angle of a lattice line, detected or replaced.
+     */
+    public double getTheta(int m) {
+        return thetas[m];
+    }
+
+    /**
+     * Gets the radius of a lattice line, detected or replaced.
+     */
+    public double getR(int m) {
+        return rhos[m];
+    }
+
+    /**
+     * Gets the index in the {@link LineSet} of the line matching a lattice line, -1 if it was replaced.
+     */
+    public int getLineIndex(int m) {
+        return lineIndexes[m];
+    }
+}
@@ -0,0 +1,127 @@
+package mb.sudoku.helpers;
+
+import java.util.Arrays;
+
+/**
+ * A set of roughly parallel lines kept in primitive arrays, sorted by where they cross the image.
+ * <p/>
+ * The position of a vertical line is the x where it crosses the middle row of the image, the
+ * position of a horizontal line is the y where it crosses the middle column. Positions are
+ * computed once when a line is added, so sorting and searching the set needs no trigonometry.
+ * The lines are given as the angle and radius of {@link HoughLine}, the radius being a row of
+ * the hough array of an image with the same size.
+ */
+public class LineSet {
+
+    private final boolean vertical;
+    private final double centerX, centerY;
+    private final int houghHeight;
+
+    private double[] thetas = new double[32];
+    private double[] rhos = new double[32];
+    private int[] positions = new int[32];
+    private int size;
+
+    /**
+     * Initialises an empty set of lines.
+     *
+     * @param width    the width of the image the lines were found in
+     * @param height   the height of the image the lines were found in
+     * @param vertical true if the lines are vertical, false if they are horizontal
+     */
+    public LineSet(int width, int height, boolean vertical) {
+        this.vertical = vertical;
+        this.centerX = width / 2;
+        this.centerY = height / 2;
+        this.houghHeight = (int) (Math.sqrt(2) * Math.max(height, width)) / 2;
+    }
+
+    /**
+     * Adds a line, the set has to be sorted again afterwards.
+     *
+     * @param theta the angle of the line in radians
+     * @param r     the radius of the line
+     */
+    public void add(double theta, double r) {
+        if (size == positions.length) {
+            thetas = Arrays.copyOf(thetas, 2 * size);
+            rhos = Arrays.copyOf(rhos, 2 * size);
+            positions = Arrays.copyOf(positions, 2 * size);
+        }
+        thetas[size] = theta;
+        rhos[size] = r;
+        if (vertical) {
+            positions[size] = (int) ((r - houghHeight) / Math.cos(theta) + centerX);
+        } else {
+            positions[size] = (int) ((r - houghHeight) / Math.sin(theta) + centerY);
+        }
+        size++;
+    }
+
+    public void add(HoughLine line) {
+        add(line.getTheta(), line.getR());
+    }
+
+    /**
+     * Sorts the lines by position. Lines with the same position keep the order they were added in.
+     */
+    public void sort() {
+        // the position in the upper half and the index in the lower half sort as a single long
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) positions[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        double[] sortedThetas = new double[thetas.length];
+        double[] sortedRhos = new double[rhos.length];
+        int[] sortedPositions = new int[positions.length];
+        for (int i = 0; i < size; i++) {
+            int index = (int) keys[i];
+            sortedThetas[i] = thetas[index];
+            sortedRhos[i] = rhos[index];
+            sortedPositions[i] = positions[index];
+        }
+        thetas = sortedThetas;
+        rhos = sortedRhos;
+        positions = sortedPositions;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getTheta(int i) {
+        return thetas[i];
+    }
+
+    public double getR(int i) {
+        return rhos[i];
+    }
+
+    public int getPosition(int i) {
+        return positions[i];
+    }
+
+    /**
+     * Gets the radius of the line with the given angle crossing the middle of the image at
+     * the given position, the inverse of the position computed in {@link #add(double, double)}.
+     *
+     * @param position the x of a vertical line or the y of a horizontal line
+     * @param theta    the angle of the line in radians
+     * @return the radius of the line
+     */
+    public double radiusAt(double position, double theta) {
+        if (vertical) {
+            return (position - centerX) * Math.cos(theta) + houghHeight;
+        }
+        return (position - centerY) * Math.sin(theta) + houghHeight;
+    }
+
+    /**
+     * Gets the distance between two lines, measured at the middle of the image.
+     */
+    public int distance(int i, int j) {
+        return Math.abs(positions[i] - positions[j]);
+    }
+}
@@ -0,0 +1,240 @@
+package mb.sudoku.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs items through a sequence of stages, every stage on its own threads, so the stages of
+ * different items overlap.
+ * <p/>
+ * Every stage takes its items from a bounded queue and puts them in the queue of the next
+ * stage, waiting while that queue is full. A stage faster than the next one is therefore held
+ * back instead of piling up items, and {@link #submit(Object)} waits while the first queue is
+ * full. At most the capacity of the queues plus the number of threads items are in the
+ * pipeline at any time.
+ * <p/>
+ * An item leaves the pipeline after the last stage, when a stage returns false for it, or when
+ * a stage throws, even an {@link Error}; the {@link Sink} is then called with the item and what
+ * was thrown, if anything, on the thread of that stage. A thread of a stage keeps going after a
+ * failed item, so the other items and the end of the pipeline are not held up.
+ * <p/>
+ * Every stage counts its items and the time spent processing them, and its queue is watched,
+ * see {@link #getStats()}. The stage with a full queue in front of it and busy threads is the
+ * bottleneck.
+ *
+ * @param <T> the type of the items
+ */
+public class Pipeline<T> {
+
+    /**
+     * A step of the pipeline, called on the threads of its stage.
+     */
+    public interface Stage<T> {
+
+        /**
+         * Processes an item, updating it in place.
+         *
+         * @param item the item
+         * @return true to pass the item to the next stage, false if it is done
+         * @throws Exception if the item failed, it is then done
+         */
+        boolean process(T item) throws Exception;
+    }
+
+    /**
+     * Receives the items leaving the pipeline, from the threads of all the stages.
+     */
+    public interface Sink<T> {
+
+        /**
+         * @param item  the item
+         * @param error what a stage threw, an exception or an error such as an
+         *              {@link OutOfMemoryError}, null if it threw nothing
+         */
+        void done(T item, Throwable error);
+    }
+
+    /* Marks the end of the items in a queue, one for every thread of the stage */
+    private static final Object END = new Object();
+
+    private final List<StageRunner> stages = new ArrayList<StageRunner>();
+    private final Sink<T> sink;
+    private long startTime;
+    private boolean started;
+
+    public Pipeline(Sink<T> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Appends a stage to the pipeline, before it is started.
+     *
+     * @param name     the name of the stage, used for its threads and its statistics
+     * @param threads  the number of threads running the stage
+     * @param capacity the number of items that can wait in front of the stage
+     * @param stage    the step run for every item
+     */
+    public void addStage(String name, int threads, int capacity, Stage<T> stage) {
+        if (started) {
+            throw new IllegalStateException("The pipeline is already started");
+        }
+        if (threads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Stage " + name + " needs at least one thread and one queued item");
+        }
+        stages.add(new StageRunner(name, threads, capacity, stage));
+    }
+
+    /**
+     * Starts the threads of all the stages.
+     */
+    public void start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("The pipeline has no stage");
+        }
+        started = true;
+        startTime = System.nanoTime();
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null);
+        }
+    }
+
+    /**
+     * Queues an item for the first stage, waiting while its queue is full.
+     */
+    public void submit(T item) throws InterruptedException {
+        stages.get(0).queue.put(item);
+        stages.get(0).watchQueue();
+    }
+
+    /**
+     * Waits until every submitted item has left the pipeline and stops the threads.
+     * No item can be submitted afterwards.
+     */
+    public void finish() throws InterruptedException {
+        StageRunner first = stages.get(0);
+        for (int i = 0; i < first.threads; i++) {
+            first.queue.put(END);
+        }
+        for (StageRunner stage : stages) {
+            for (Thread worker : stage.workers) {
+                worker.join();
+            }
+        }
+    }
+
+    /**
+     * Describes every stage on a line: its threads, the items waiting in its queue now and at
+     * most, the items it processed, its throughput since the start and how busy its threads were.
+     */
+    public String getStats() {
+        double elapsed = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        StringBuilder stats = new StringBuilder();
+        for (StageRunner stage : stages) {
+            long processed = stage.processed.get();
+            stats.append(String.format(Locale.ROOT, "%-12s %2d threads  queue %3d/%-3d max %3d  done %7d  %8.1f/s  busy %3.0f%%%n",
+                    stage.name, stage.threads, stage.queue.size(), stage.capacity, stage.maxDepth.get(),
+                    processed, processed / elapsed, 100 * stage.busyNanos.get() / 1e9 / elapsed / stage.threads));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * A stage with its queue, its threads and its statistics.
+     */
+    private class StageRunner {
+
+        private final String name;
+        private final int threads;
+        private final int capacity;
+        private final Stage<T> stage;
+        private final BlockingQueue<Object> queue;
+        private final Thread[] workers;
+
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicInteger running;
+
+        StageRunner(String name, int threads, int capacity, Stage<T> stage) {
+            this.name = name;
+            this.threads = threads;
+            this.capacity = capacity;
+            this.stage = stage;
+            this.queue = new ArrayBlockingQueue<Object>(capacity);
+            this.workers = new Thread[threads];
+            this.running = new AtomicInteger(threads);
+        }
+
+        void start(final StageRunner next) {
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work(next);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "pipeline-" + name + "-" + (i + 1));
+                workers[i].start();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work(StageRunner next) throws InterruptedException {
+            try {
+                while (true) {
+                    Object taken = queue.take();
+                    if (taken == END) {
+                        break;
+                    }
+                    T item = (T) taken;
+                    boolean passOn;
+                    Throwable error = null;
+                    long start = System.nanoTime();
+                    try {
+                        passOn = stage.process(item);
+                    } catch (Throwable e) {
+                        passOn = false;
+                        error = e;
+                    }
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+
+                    if (passOn && next != null) {
+                        next.queue.put(item);
+                        next.watchQueue();
+                    } else {
+                        try {
+                            sink.done(item, error);
+                        } catch (Throwable e) {
+                            System.err.println(e.toString());
+                        }
+                    }
+                }
+            } finally {
+
+                /* The last thread of the stage to stop ends the next stage, whatever stopped it */
+                if (running.decrementAndGet() == 0 && next != null) {
+                    for (int i = 0; i < next.threads; i++) {
+                        next.queue.put(END);
+                    }
+                }
+            }
+        }
+
+        void watchQueue() {
+            int depth = queue.size();
+            int max = maxDepth.get();
+            while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+                max = maxDepth.get();
+            }
+        }
+    }
+}
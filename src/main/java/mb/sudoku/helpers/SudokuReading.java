@@ -0,0 +1,100 @@
+package mb.sudoku.helpers;
+
+/**
+ * The result of reading the cells of a sudoku grid.
+ * <p/>
+ * Every cell has its center ink, whether it holds a digit, the digit itself, 0 for an
+ * empty cell, and how sure the reading is. Cells are indexed by {@code [row][column]} like
+ * the grid returned by
+ * {@link mb.sudoku.utils.SudokuTools#getSudoku(java.awt.image.BufferedImage, DigitRecognizer)}.
+ * When only the occupancy was read, the digits of the occupied cells are left 0 too.
+ */
+public class SudokuReading {
+
+    private final int[][] digits = new int[9][9];
+    private final boolean[][] occupied = new boolean[9][9];
+    private final double[][] ink = new double[9][9];
+    private final double[][] confidences = new double[9][9];
+
+    /**
+     * Records the reading of a cell.
+     *
+     * @param row        the row of the cell
+     * @param column     the column of the cell
+     * @param ink        the center ink of the cell
+     * @param occupied   whether the cell holds a digit
+     * @param digit      the digit of the cell, 0 if it is empty or was not recognized
+     * @param confidence how sure the reading of the cell is, in [0, 1]
+     */
+    public void set(int row, int column, double ink, boolean occupied, int digit, double confidence) {
+        this.ink[row][column] = ink;
+        this.occupied[row][column] = occupied;
+        this.digits[row][column] = digit;
+        this.confidences[row][column] = confidence;
+    }
+
+    public int getDigit(int row, int column) {
+        return digits[row][column];
+    }
+
+    public boolean isOccupied(int row, int column) {
+        return occupied[row][column];
+    }
+
+    public double getInk(int row, int column) {
+        return ink[row][column];
+    }
+
+    public double getConfidence(int row, int column) {
+        return confidences[row][column];
+    }
+
+    /**
+     * Gets a copy of the digits, 0 for the empty cells.
+     */
+    public int[][] getDigits() {
+        int[][] copy = new int[9][];
+        for (int i = 0; i < 9; i++) {
+            copy[i] = digits[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Gets a copy of the occupancy of the cells, true for the cells holding a digit.
+     */
+    public boolean[][] getOccupancy() {
+        boolean[][] copy = new boolean[9][];
+        for (int i = 0; i < 9; i++) {
+            copy[i] = occupied[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Gets a copy of the confidence of every cell, see {@link DigitRecognizer#confidence(int, int)}.
+     * The confidence of an empty cell is how far its ink is below the occupancy threshold.
+     */
+    public double[][] getConfidences() {
+        double[][] copy = new double[9][];
+        for (int i = 0; i < 9; i++) {
+            copy[i] = confidences[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the number of cells holding a digit.
+     */
+    public int getOccupiedCount() {
+        int count = 0;
+        for (boolean[] row : occupied) {
+            for (boolean cell : row) {
+                if (cell) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -1,27 +1,30 @@
 package mb.sudoku.utils;
 
+import mb.sudoku.helpers.DigitNormalizer;
+import mb.sudoku.helpers.ExecutionMode;
+import mb.sudoku.helpers.GrayscaleSource;
+import mb.sudoku.helpers.Homography;
 import mb.sudoku.helpers.HoughLine;
+import mb.sudoku.helpers.HoughPeaks;
 import mb.sudoku.helpers.HoughTransform;
-import org.bytedeco.javacpp.opencv_core;
+import mb.sudoku.helpers.LatticeFit;
+import mb.sudoku.helpers.LineSet;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBufferByte;
-import java.awt.image.WritableRaster;
-import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Vector;
-
-import static org.bytedeco.javacpp.opencv_core.cvGetImage;
-import static org.bytedeco.javacpp.opencv_imgproc.cvWarpPerspective;
-import static org.bytedeco.javacv.JavaCV.getPerspectiveTransform;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * <h1>ImageTools</h1>
@@ -66,82 +69,195 @@ public class ImageTools {
      * version.
      * <p/>
      * The method uses an area 11x11 around the pixel to calculate the threshold.
-     * Integral matrix is used to speed up the calculation.
      *
      * @param image the source image
      * @return the image in monochrome
+     * @see #monochrome(java.awt.image.BufferedImage, mb.sudoku.utils.ImageTools.ThresholdWorkspace)
      */
     public static BufferedImage monochrome(BufferedImage image) {
+        return monochrome(image, new ThresholdWorkspace());
+    }
+
+    /**
+     * This method creates the monochrome version of the {@link BufferedImage}
+     * passed as parameter. It uses adaptive threshold to create the monochrome
+     * version.
+     * <p/>
+     * The method uses an area 11x11 around the pixel to calculate the threshold.
+     * The image is processed row by row in a single pass: the sums of the 11 rows
+     * around the current row are kept per column and updated as the window rolls
+     * down, so the workspace only holds a few rows no matter the image height.
+     * The result is written straight into the data buffer of the returned image.
+     * <p/>
+     * Any image type is accepted, the rows are read as grayscale through a
+     * {@link mb.sudoku.helpers.GrayscaleSource}.
+     *
+     * @param image     the source image
+     * @param workspace the buffers used for the rolling window, can be reused between calls on one thread
+     * @return the image in monochrome
+     */
+    public static BufferedImage monochrome(BufferedImage image, ThresholdWorkspace workspace) {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        int[] integral = new int[width * height];
-        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-
-        for (int pixel = 0; pixel < pixels.length; pixel += 3) {
-
-            int i = (pixel / 3) / width;
-            int j = (pixel / 3) % width;
-
-            int r = pixels[pixel + 2];
-            int g = pixels[pixel + 1];
-            int b = pixels[pixel];
-            if (r < 0) r = 256 + r;
-            if (g < 0) g = 256 + g;
-            if (b < 0) b = 256 + b;
-            int argb = r + g + b;
-            int argbByte = argb / 3;
-
-            if (i == 0 && j == 0) {
-                integral[i * width + j] = argbByte;
-            } else if (i == 0) {
-                integral[i * width + j] = integral[i * width + j - 1] + argbByte;
-            } else if (j == 0) {
-                integral[i * width + j] = integral[(i - 1) * width + j] + argbByte;
-            } else {
-                integral[i * width + j] = integral[(i - 1) * width + j] + integral[i * width + j - 1] - integral[(i - 1) * width + j - 1] + argbByte;
+        GrayscaleSource source = GrayscaleSource.of(image);
+
+        BufferedImage imageBlackWhite = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] pixelsBW = ((DataBufferByte) imageBlackWhite.getRaster().getDataBuffer()).getData();
+
+        threshold(source, pixelsBW, 0, height, workspace);
+        return imageBlackWhite;
+    }
+
+    /**
+     * This method creates the monochrome version of the {@link BufferedImage}
+     * passed as parameter, the same way as {@link #monochrome(java.awt.image.BufferedImage)}.
+     * <p/>
+     * In {@link ExecutionMode#PARALLEL} mode the image is split into horizontal
+     * bands that are thresholded on the common fork-join pool. Every band reads
+     * the 5 rows above and below it to fill the 11x11 window, so the bands
+     * overlap when reading but write disjoint rows of the output, and the result
+     * is identical to the serial one.
+     *
+     * @param image the source image
+     * @param mode  whether to threshold on the calling thread or on all cores
+     * @return the image in monochrome
+     */
+    public static BufferedImage monochrome(BufferedImage image, ExecutionMode mode) {
+        int height = image.getHeight();
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        if (mode == ExecutionMode.SERIAL || parallelism < 2 || height < 2 * MIN_BAND_ROWS) {
+            return monochrome(image);
+        }
+
+        BufferedImage imageBlackWhite = new BufferedImage(image.getWidth(), height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] pixelsBW = ((DataBufferByte) imageBlackWhite.getRaster().getDataBuffer()).getData();
+
+        /* About 4 bands per core so that a slow band does not keep the others waiting */
+        int bandRows = Math.max(MIN_BAND_ROWS, (height + 4 * parallelism - 1) / (4 * parallelism));
+        ForkJoinPool.commonPool().invoke(new ThresholdBands(image, pixelsBW, 0, height, bandRows));
+        return imageBlackWhite;
+    }
+
+    /* Bands smaller than this spend more time filling the window than thresholding */
+    private static final int MIN_BAND_ROWS = 64;
+
+    /* The workspace of each fork-join worker, reused by every band it runs */
+    private static final ThreadLocal<ThresholdWorkspace> BAND_WORKSPACE = new ThreadLocal<ThresholdWorkspace>() {
+        @Override
+        protected ThresholdWorkspace initialValue() {
+            return new ThresholdWorkspace();
+        }
+    };
+
+    /**
+     * Thresholds the rows [startRow, endRow), splitting them in halves until
+     * they fit in one band.
+     */
+    private static class ThresholdBands extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage image;
+        private final byte[] pixelsBW;
+        private final int startRow, endRow, bandRows;
+
+        ThresholdBands(BufferedImage image, byte[] pixelsBW, int startRow, int endRow, int bandRows) {
+            this.image = image;
+            this.pixelsBW = pixelsBW;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandRows) {
+                threshold(GrayscaleSource.of(image), pixelsBW, startRow, endRow, BAND_WORKSPACE.get());
+                return;
             }
+            int bands = (endRow - startRow + bandRows - 1) / bandRows;
+            int middleRow = startRow + bands / 2 * bandRows;
+            invokeAll(new ThresholdBands(image, pixelsBW, startRow, middleRow, bandRows),
+                    new ThresholdBands(image, pixelsBW, middleRow, endRow, bandRows));
         }
+    }
 
-        BufferedImage imageBlackWhite = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        WritableRaster raster = imageBlackWhite.getRaster();
-        int[] pixelsBW = new int[width * height + 1];
-
-        for (int pixel = 0; pixel < pixels.length; pixel += 3) {
-            int r = pixels[pixel];
-            int g = pixels[pixel + 1];
-            int b = pixels[pixel + 2];
-            if (r < 0) r = 256 + r;
-            if (g < 0) g = 256 + g;
-            if (b < 0) b = 256 + b;
-            int argb = r + g + b;
-            int argbByte = argb / 3;
-
-            int threshold = 0;
-            int i = (pixel / 3) / width;
-            int j = (pixel / 3) % width;
-
-            if (i > 5 && i < height - 5 && j > 5 && j < width - 5) {
-                threshold = (integral[(i + 5) * width + (j + 5)] - integral[(i - 6) * width + (j + 5)]
-                        - integral[(i + 5) * width + (j - 6)] + integral[(i - 6) * width + (j - 6)]) / 121;
+    /**
+     * Thresholds the rows [startRow, endRow) of the image. The rows up to 5 pixels
+     * above and below the range are read to fill the window, but only the rows in
+     * the range are written.
+     * <p/>
+     * A pixel becomes white (255) unless it is brighter than 90% of the mean of
+     * the 11x11 area around it. Pixels closer than 6 pixels to the border are
+     * compared against 0.
+     */
+    private static void threshold(GrayscaleSource source, byte[] pixelsBW,
+                                  int startRow, int endRow, ThresholdWorkspace workspace) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        workspace.ensureCapacity(width);
+        byte[] rows = workspace.rows;
+        int[] columnSums = workspace.columnSums;
+        Arrays.fill(columnSums, 0, width, 0);
+
+        int firstRow = Math.max(0, startRow - 5);
+        int lastRow = Math.min(height, endRow + 5);
+
+        for (int y = firstRow; y < endRow + 5; y++) {
+
+            /* 1. Read the next row into the window and drop the one that left it */
+            if (y < lastRow) {
+                int row = (y % ThresholdWorkspace.ROWS) * width;
+                source.readRow(y, rows, row);
+                for (int j = 0; j < width; j++) {
+                    columnSums[j] += rows[row + j] & 0xff;
+                }
+                if (y - 11 >= firstRow) {
+                    int old = ((y - 11) % ThresholdWorkspace.ROWS) * width;
+                    for (int j = 0; j < width; j++) {
+                        columnSums[j] -= rows[old + j] & 0xff;
+                    }
+                }
             }
 
-            if (argbByte > threshold * 0.9) {
-                pixelsBW[pixel / 3] = 0;
-            } else {
-                pixelsBW[pixel / 3] = 255;
+            /* 2. The window is now centred on row i */
+            int i = y - 5;
+            if (i < startRow) {
+                continue;
+            }
+            int row = (i % ThresholdWorkspace.ROWS) * width;
+            int out = i * width;
+            int j = 0;
+            if (i > 5 && i < height - 5 && width > 11) {
+                for (; j <= 5; j++) {
+                    pixelsBW[out + j] = rows[row + j] != 0 ? 0 : (byte) 255;
+                }
+                int sum = 0;
+                for (int k = 1; k <= 11; k++) {
+                    sum += columnSums[k];
+                }
+                for (; j < width - 5; j++) {
+                    if (j > 6) {
+                        sum += columnSums[j + 5] - columnSums[j - 6];
+                    }
+                    int threshold = sum / 121;
+                    /* same as value > threshold * 0.9 for integers */
+                    pixelsBW[out + j] = 10 * (rows[row + j] & 0xff) > 9 * threshold ? 0 : (byte) 255;
+                }
+            }
+            for (; j < width; j++) {
+                pixelsBW[out + j] = rows[row + j] != 0 ? 0 : (byte) 255;
             }
         }
-
-        raster.setPixels(0, 0, width, height, pixelsBW);
-        return imageBlackWhite;
     }
 
     /**
      * Rotates a monochrome BufferedImage so the sudoku grid is aligned.
      * <p/>
      * {@link mb.sudoku.helpers.HoughTransform} is used to detect the horizontal
-     * grid lines. The threshold for {@link mb.sudoku.helpers.HoughLine} used is
+     * grid lines, voting the angles between 60 and 120 degrees with a step of
+     * half a degree. The threshold for {@link mb.sudoku.helpers.HoughLine} used is
      * {@code 0.6 * HoughTransform.getHighestValue()} * votes of the most voted
      * {@link mb.sudoku.helpers.HoughLine}. The rotation needed is the mean of
      * the angles of all the horizontal lines that pass the threshold.
@@ -153,20 +269,29 @@ public class ImageTools {
      * @see java.awt.geom.AffineTransform
      */
     public static BufferedImage getRotatedImage(BufferedImage bufferedImage) {
+        return getRotatedImage(bufferedImage, ExecutionMode.SERIAL);
+    }
+
+    /**
+     * Rotates a monochrome BufferedImage so the sudoku grid is aligned, voting the
+     * hough transform on the calling thread or on all cores.
+     *
+     * @param bufferedImage the source monochrome image
+     * @param mode          how the hough transform votes, the result is the same in both modes
+     * @return the monochrome image with the sudoku grid aligned
+     * @see #getRotatedImage(java.awt.image.BufferedImage)
+     */
+    public static BufferedImage getRotatedImage(BufferedImage bufferedImage, ExecutionMode mode) {
         int width = bufferedImage.getWidth();
         int height = bufferedImage.getHeight();
 
         /* 1. Initialize HoughTransform and vote horizontal lines */
-        HoughTransform houghTransform = new HoughTransform(width, height);
-        houghTransform.addHorizontalPoints(bufferedImage);
+        HoughTransform houghTransform = HoughTransform.acquire(width, height, 360, 60, 120);
+        houghTransform.setExecutionMode(mode);
+        houghTransform.addPoints(bufferedImage);
 
         /* 2. Calculate the mean of the angles off all lines that pass the threshold */
-        double meanTheta = 0;
-        Vector<HoughLine> lines = houghTransform.getLines((int) (0.6 * houghTransform.getHighestValue()));
-        for (HoughLine line : lines) {
-            meanTheta += line.getTheta();
-        }
-        meanTheta /= lines.size();
+        double meanTheta = meanTheta(houghTransform);
 
         /* 3. Rotate the image using the angle calculated */
         BufferedImage rotatedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
@@ -178,35 +303,65 @@ public class ImageTools {
         return rotatedImage;
     }
 
+    /**
+     * Gets the mean angle of the lines with at least 0.6 times the votes of the most voted line.
+     *
+     * @return the mean angle in radians, NaN if nothing was voted
+     */
+    private static double meanTheta(HoughTransform houghTransform) {
+        double meanTheta = 0;
+        HoughPeaks peaks = houghTransform.getPeaks((int) (0.6 * houghTransform.getHighestValue()),
+                Integer.MAX_VALUE, new HoughPeaks());
+        for (int i = 0; i < peaks.size(); i++) {
+            meanTheta += peaks.getThetas()[i];
+        }
+        return meanTheta / peaks.size();
+    }
+
     /**
      * This method detects the sudoku grid in the image and returns the image
      * cropped around the grid.
      * <p/>
-     * {@link mb.sudoku.helpers.HoughTransform} is used to detect the grid lines.
-     * The threshold for {@link mb.sudoku.helpers.HoughLine} used is
+     * {@link mb.sudoku.helpers.HoughTransform} is used to detect the grid lines,
+     * voting only the angles within 6 degrees of vertical and horizontal. The threshold for {@link mb.sudoku.helpers.HoughLine} used is
      * {@code 0.5 * HoughTransform.getHighestValue()} * votes of the most voted
      * {@link mb.sudoku.helpers.HoughLine}. {@link mb.sudoku.helpers.HoughLine}s
-     * are sorted separately (vertical and horizontal). The middle square is found
-     * and is used as the starting point to grow the grid horizontally and
-     * vertically.
+     * are sorted separately (vertical and horizontal) and a lattice of 10 evenly
+     * spaced lines is fitted to each direction by {@link mb.sudoku.helpers.LatticeFit},
+     * in bounded time whatever lines were found.
      * <p/>
-     * The second part is performing a warpPerspective to eliminate the skewing of
-     * the grid and to transform the grid into a square.
+     * The second part is performing a perspective warp to eliminate the skewing of
+     * the grid and to transform the grid into a square, see
+     * {@link #warpPerspective(java.awt.image.BufferedImage, mb.sudoku.helpers.Homography, int, int)}.
      *
      * @param bufferedImage the source monochrome rotated image
      * @return the monochrome image that contains only the sudoku grid in case of success, and null otherwise
      * @see mb.sudoku.helpers.HoughTransform
      * @see mb.sudoku.helpers.HoughLine
-     * @see org.bytedeco.javacpp.opencv_core
+     * @see mb.sudoku.helpers.Homography
      */
     public static BufferedImage detectGrid(BufferedImage bufferedImage) {
+        return detectGrid(bufferedImage, ExecutionMode.SERIAL);
+    }
+
+    /**
+     * Detects the sudoku grid in a rotated monochrome image, voting the hough transform
+     * on the calling thread or on all cores.
+     *
+     * @param bufferedImage the source monochrome rotated image
+     * @param mode          how the hough transform votes, the result is the same in both modes
+     * @return the monochrome image that contains only the sudoku grid in case of success, and null otherwise
+     * @see #detectGrid(java.awt.image.BufferedImage)
+     */
+    public static BufferedImage detectGrid(BufferedImage bufferedImage, ExecutionMode mode) {
         int width = bufferedImage.getWidth();
         int height = bufferedImage.getHeight();
 
-        /* 1. Get the vertical and horizontal lines and then sort them */
-        ArrayList<HoughLine> horizontal = new ArrayList<HoughLine>();
-        ArrayList<HoughLine> vertical = new ArrayList<HoughLine>();
-        HoughTransform houghTransform = new HoughTransform(width, height);
+        /* 1. Get the vertical and horizontal lines and then sort them by position */
+        LineSet horizontal = new LineSet(width, height, false);
+        LineSet vertical = new LineSet(width, height, true);
+        HoughTransform houghTransform = HoughTransform.acquire(width, height, 180, -6, 6, 84, 96);
+        houghTransform.setExecutionMode(mode);
         houghTransform.addPoints(bufferedImage);
 
         Vector<HoughLine> lines = houghTransform.getLines((int) (0.5 * houghTransform.getHighestValue()));
@@ -220,261 +375,418 @@ public class ImageTools {
                 vertical.add(line);
             }
         }
-        Collections.sort(horizontal, new LineComparator(width, height));
-        Collections.sort(vertical, new LineComparator(width, height));
-
-        /* 2. Find the middle square */
-        int horizontalMiddle = horizontal.size() / 2;
-        int verticalMiddle = vertical.size() / 2;
-        LineComparator lc = new LineComparator(width, height);
-
-        int up = horizontalMiddle;
-        int down = horizontalMiddle + 1;
-        int dist = Math.abs(lc.compare(horizontal.get(up), horizontal.get(down)));
-        while (dist < 30) {
-            if (Math.abs(lc.compare(horizontal.get(up - 1), horizontal.get(down))) < Math.abs(lc.compare(horizontal.get(up), horizontal.get(down + 1)))) {
-                up--;
-            } else {
-                down++;
-            }
-            dist = Math.abs(lc.compare(horizontal.get(up), horizontal.get(down)));
+        horizontal.sort();
+        vertical.sort();
+
+        /* 2. Fit the grid and warp the image around it */
+        double[] corners = gridCorners(horizontal, vertical, width, height);
+        if (corners == null) {
+            return null;
         }
-        int lowerUp = up - 1;
-        int newDist = Math.abs(lc.compare(horizontal.get(up), horizontal.get(lowerUp)));
-        while (newDist < 30 && newDist < dist * 0.8) {
-            if (newDist > 0.4 * dist && newDist < 0.6 * dist) {
-                down = lowerUp;
-                dist = newDist;
-                break;
-            }
-            lowerUp--;
-            newDist = Math.abs(lc.compare(horizontal.get(up), horizontal.get(lowerUp)));
+        return warpGrid(bufferedImage, corners);
+    }
+
+    /* The largest side of the image the grid is searched in, larger images are searched coarse to fine */
+    public static final int PYRAMID_SIZE = 800;
+
+    /**
+     * This method detects the sudoku grid in a monochrome image that was not rotated and
+     * returns the image cropped around the grid, like
+     * {@link #detectGrid(java.awt.image.BufferedImage)} does for the result of
+     * {@link #getRotatedImage(java.awt.image.BufferedImage)}.
+     * <p/>
+     * The corners of the grid are found by {@link #findGridCorners(java.awt.image.BufferedImage)}
+     * and the grid is warped straight from the source image, so the image is resampled only once
+     * and always at full resolution.
+     *
+     * @param bufferedImage the source monochrome image
+     * @return the monochrome image that contains only the sudoku grid in case of success, and null otherwise
+     */
+    public static BufferedImage extractGrid(BufferedImage bufferedImage) {
+        return extractGrid(bufferedImage, ExecutionMode.SERIAL);
+    }
+
+    /**
+     * Detects the sudoku grid in a monochrome image that was not rotated, voting the
+     * hough transforms on the calling thread or on all cores.
+     *
+     * @param bufferedImage the source monochrome image
+     * @param mode          how the hough transforms vote, the result is the same in both modes
+     * @return the monochrome image that contains only the sudoku grid in case of success, and null otherwise
+     * @see #extractGrid(java.awt.image.BufferedImage)
+     */
+    public static BufferedImage extractGrid(BufferedImage bufferedImage, ExecutionMode mode) {
+        double[] corners = findGridCorners(bufferedImage, mode);
+        if (corners == null) {
+            return null;
         }
-        int left = verticalMiddle;
-        int right = verticalMiddle + 1;
-        while (Math.abs(lc.compare(vertical.get(left), vertical.get(right))) < dist * 0.8) {
-            if (Math.abs(lc.compare(vertical.get(left - 1), vertical.get(right))) < Math.abs(lc.compare(vertical.get(left), vertical.get(right + 1)))) {
-                left--;
-            } else {
-                right++;
-            }
+        return warpGrid(bufferedImage, corners);
+    }
+
+    /**
+     * Finds the corners of the sudoku grid in a monochrome image that was not rotated.
+     * <p/>
+     * A single {@link mb.sudoku.helpers.HoughTransform} scans the image once. The angles between
+     * 60 and 120 degrees are voted first and the skew of the grid is the mean angle of the
+     * horizontal lines, as in {@link #getRotatedImage(java.awt.image.BufferedImage)}. The same edge
+     * points are then voted only within 6 degrees of the perpendicular to the skew, for the
+     * vertical lines. The grid lines are the lines within 6 degrees of the skew and of its
+     * perpendicular, and are intersected in the frame of the image itself.
+     * <p/>
+     * Images larger than {@code PYRAMID_SIZE} pixels are searched coarse to fine: the grid is
+     * found on a copy reduced by {@link #downsample(java.awt.image.BufferedImage, int)}, then every
+     * corner is refined at full resolution by a small hough transform around it, voting only the
+     * angles of the two grid borders meeting there.
+     *
+     * @param bufferedImage the source monochrome image
+     * @return the corners {top left x, y, top right x, y, bottom right x, y, bottom left x, y}, null if there is no grid
+     * @see mb.sudoku.helpers.HoughTransform#addVotes(double, double)
+     */
+    public static double[] findGridCorners(BufferedImage bufferedImage) {
+        return findGridCorners(bufferedImage, ExecutionMode.SERIAL);
+    }
+
+    /**
+     * Finds the corners of the sudoku grid like {@link #findGridCorners(java.awt.image.BufferedImage)},
+     * voting the hough transform of the whole image on the calling thread or on all cores. The
+     * transforms refining the corners are small and always vote on the calling thread.
+     *
+     * @param bufferedImage the source monochrome image
+     * @param mode          how the hough transform votes, the result is the same in both modes
+     * @return the corners {top left x, y, top right x, y, bottom right x, y, bottom left x, y}, null if there is no grid
+     */
+    public static double[] findGridCorners(BufferedImage bufferedImage, ExecutionMode mode) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        int factor = (Math.max(width, height) + PYRAMID_SIZE - 1) / PYRAMID_SIZE;
+        if (factor <= 1) {
+            return detectCorners(bufferedImage, mode);
         }
 
-        /* 3. Start expanding vertically and horizontally till we have 10 lines of each type */
-        int horizontalLines = 2;
-        int verticalLines = 2;
-
-        while (horizontalLines < 10) {
-            int meanDistance = Math.abs(lc.compare(horizontal.get(up), horizontal.get(down))) / (horizontalLines - 1);
-            for (int cup = up - 1; cup >= 0; cup--) {
-                int distance = Math.abs(lc.compare(horizontal.get(cup), horizontal.get(up)));
-                if (distance > meanDistance * 0.8 && distance < meanDistance * 1.2) {
-                    up = cup;
-                    horizontalLines++;
-                    break;
-                } else if (distance > meanDistance * 1.6 && distance < meanDistance * 2.4) {
-                    up = cup;
-                    horizontalLines++;
-                    horizontalLines++;
-                    break;
-                }
-            }
-            for (int cup = down + 1; cup < horizontal.size(); cup++) {
-                int distance = Math.abs(lc.compare(horizontal.get(cup), horizontal.get(down)));
-                if (distance > meanDistance * 0.8 && distance < meanDistance * 1.2) {
-                    down = cup;
-                    horizontalLines++;
-                    break;
-                } else if (distance > meanDistance * 1.6 && distance < meanDistance * 2.4) {
-                    down = cup;
-                    horizontalLines++;
-                    horizontalLines++;
-                    break;
-                }
-            }
+        /* 1. Find the corners on the reduced image and scale them back */
+        double[] corners = detectCorners(downsample(bufferedImage, factor), mode);
+        if (corners == null) {
+            return null;
+        }
+        for (int i = 0; i < corners.length; i++) {
+            corners[i] = corners[i] * factor + (factor - 1) / 2.0;
         }
 
-        while (verticalLines < 10) {
-            int meanDistance = Math.abs(lc.compare(vertical.get(left), vertical.get(right))) / (verticalLines - 1);
-            for (int cup = left - 1; cup >= 0; cup--) {
-                int distance = Math.abs(lc.compare(vertical.get(cup), vertical.get(left)));
-                if (distance > meanDistance * 0.8 && distance < meanDistance * 1.2) {
-                    left = cup;
-                    verticalLines++;
-                    break;
-                } else if (distance > meanDistance * 1.6 && distance < meanDistance * 2.4) {
-                    left = cup;
-                    verticalLines++;
-                    verticalLines++;
-                    break;
-                }
-            }
-            for (int cup = right + 1; cup < vertical.size(); cup++) {
-                int distance = Math.abs(lc.compare(vertical.get(cup), vertical.get(right)));
-                if (distance > meanDistance * 0.8 && distance < meanDistance * 1.2) {
-                    right = cup;
-                    verticalLines++;
-                    break;
-                } else if (distance > meanDistance * 1.6 && distance < meanDistance * 2.4) {
-                    right = cup;
-                    verticalLines++;
-                    verticalLines++;
-                    break;
-                }
+        /* 2. Refine every corner with the angles of the borders meeting there */
+        double top = lineTheta(corners[0], corners[1], corners[2], corners[3]);
+        double right = lineTheta(corners[2], corners[3], corners[4], corners[5]);
+        double bottom = lineTheta(corners[6], corners[7], corners[4], corners[5]);
+        double left = lineTheta(corners[0], corners[1], corners[6], corners[7]);
+        int radius = Math.max(16, 4 * factor);
+        refineCorner(bufferedImage, corners, 0, top, left, radius);
+        refineCorner(bufferedImage, corners, 1, top, right, radius);
+        refineCorner(bufferedImage, corners, 2, bottom, right, radius);
+        refineCorner(bufferedImage, corners, 3, bottom, left, radius);
+        return corners;
+    }
+
+    /**
+     * Finds the corners of the grid at the resolution of the image.
+     *
+     * @see #findGridCorners(java.awt.image.BufferedImage)
+     */
+    private static double[] detectCorners(BufferedImage bufferedImage, ExecutionMode mode) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+
+        /* 1. Vote the horizontal lines and take the skew from them */
+        HoughTransform houghTransform = HoughTransform.acquire(width, height, 360, 60, 120, -30, 30);
+        houghTransform.setExecutionMode(mode);
+        houghTransform.addPoints(bufferedImage, 60, 120);
+        double skew = Math.toDegrees(meanTheta(houghTransform));
+        if (Double.isNaN(skew)) {
+            System.err.println("No lines found");
+            return null;
+        }
+
+        /* 2. Vote the vertical lines, perpendicular to the horizontal ones */
+        houghTransform.addVotes(skew - 96, skew - 84);
+
+        /* 3. Get the grid lines and sort them by position */
+        LineSet horizontal = new LineSet(width, height, false);
+        LineSet vertical = new LineSet(width, height, true);
+        Vector<HoughLine> lines = houghTransform.getLines((int) (0.5 * houghTransform.getHighestValue()));
+        for (HoughLine line : lines) {
+            double angle = angleBetween(Math.toDegrees(line.getTheta()), skew);
+            if (Math.abs(angle) <= 6) {
+                horizontal.add(line);
+            } else if (Math.abs(angle) >= 84) {
+                vertical.add(line);
             }
         }
+        horizontal.sort();
+        vertical.sort();
 
-        Point pointTopLeft = parametricIntersect(horizontal.get(up).getR(), horizontal.get(up).getTheta(),
-                vertical.get(left).getR(), vertical.get(left).getTheta(), width, height);
-        Point pointTopRight = parametricIntersect(horizontal.get(up).getR(), horizontal.get(up).getTheta(),
-                vertical.get(right).getR(), vertical.get(right).getTheta(), width, height);
-        Point pointBottomLeft = parametricIntersect(horizontal.get(down).getR(), horizontal.get(down).getTheta(),
-                vertical.get(left).getR(), vertical.get(left).getTheta(), width, height);
-        Point pointBottomRight = parametricIntersect(horizontal.get(down).getR(), horizontal.get(down).getTheta(),
-                vertical.get(right).getR(), vertical.get(right).getTheta(), width, height);
-
-        /* 4. Crop and warp the image around the grid */
-        ParameterBlock params = new ParameterBlock();
-        params.addSource(bufferedImage);
-        Point tl = new Point((int) pointTopLeft.getX(), (int) pointTopLeft.getY());
-        Point tr = new Point((int) pointTopRight.getX(), (int) pointTopRight.getY());
-        Point bl = new Point((int) pointBottomLeft.getX(), (int) pointBottomLeft.getY());
-        Point br = new Point((int) pointBottomRight.getX(), (int) pointBottomRight.getY());
-        try {
-            opencv_core.CvMat mat = opencv_core.CvMat.create(3, 3);
-            getPerspectiveTransform(new double[]{tl.x, tl.y, tr.x, tr.y, br.x, br.y, bl.x, bl.y},
-                    new double[]{0, 0, 400, 0, 400, 400, 0, 400}, mat);
-            org.bytedeco.javacpp.helper.opencv_core.CvArr input = opencv_core.IplImage.createFrom(bufferedImage).
-                    asCvMat();
-            org.bytedeco.javacpp.helper.opencv_core.CvArr output = opencv_core.IplImage.createFrom(
-                    new BufferedImage(400, 400, BufferedImage.TYPE_BYTE_GRAY)
-            ).asCvMat();
-            cvWarpPerspective(input, output, mat);
-            opencv_core.IplImage outputImage = opencv_core.IplImage.create(400, 400, 8, 1);
-            cvGetImage(output, outputImage);
-            BufferedImage cutImage = outputImage.getBufferedImage();
-            return cutImage;
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
+        return gridCorners(horizontal, vertical, width, height);
+    }
+
+    /**
+     * Fits the grid to the sorted lines and intersects its outer lines.
+     *
+     * @return the corners {top left x, y, top right x, y, bottom right x, y, bottom left x, y}, null if there is no grid
+     */
+    private static double[] gridCorners(LineSet horizontal, LineSet vertical, int width, int height) {
+
+        /* 1. Fit the 10 evenly spaced lines of the grid in each direction */
+        LatticeFit rows = LatticeFit.fit(horizontal);
+        LatticeFit columns = LatticeFit.fit(vertical);
+        if (!rows.isFound() || !columns.isFound()) {
+            System.err.println("No grid found: horizontal " + rows.getStatus() + ", vertical " + columns.getStatus());
+            return null;
+        }
+
+        /* 2. Intersect the outer lines of the grid */
+        int up = 0;
+        int down = LatticeFit.LINES - 1;
+        int left = 0;
+        int right = LatticeFit.LINES - 1;
+        Point2D.Double pointTopLeft = parametricIntersect(rows.getR(up), rows.getTheta(up),
+                columns.getR(left), columns.getTheta(left), width, height);
+        Point2D.Double pointTopRight = parametricIntersect(rows.getR(up), rows.getTheta(up),
+                columns.getR(right), columns.getTheta(right), width, height);
+        Point2D.Double pointBottomLeft = parametricIntersect(rows.getR(down), rows.getTheta(down),
+                columns.getR(left), columns.getTheta(left), width, height);
+        Point2D.Double pointBottomRight = parametricIntersect(rows.getR(down), rows.getTheta(down),
+                columns.getR(right), columns.getTheta(right), width, height);
+
+        if (Double.isNaN(pointTopLeft.x) || Double.isNaN(pointTopRight.x)
+                || Double.isNaN(pointBottomLeft.x) || Double.isNaN(pointBottomRight.x)) {
+            System.err.println("The grid lines do not intersect");
+            return null;
         }
-        return null;
+        return new double[]{pointTopLeft.x, pointTopLeft.y, pointTopRight.x, pointTopRight.y,
+                pointBottomRight.x, pointBottomRight.y, pointBottomLeft.x, pointBottomLeft.y};
     }
 
     /**
-     * Prepares the digit for learning or recognition.
-     * <p/>
-     * Crops the image around the digit, eliminating redundant space and noise
-     * around it.
+     * Moves a corner to the intersection of the strongest lines around it, found by a hough
+     * transform of the square of the given radius voting only the angles within 2 degrees of
+     * the two borders. The corner is kept if either border is not found.
      *
-     * @param bufferedImage the source square monochrome image
-     * @return a monochrome 24x24 image with the noise and space eliminated.
+     * @param corners the corners, updated in place
+     * @param corner  the index of the corner, 0 to 3
      */
-    public static BufferedImage prepareDigit(BufferedImage bufferedImage) {
-        int up = bufferedImage.getHeight() / 2 - 1;
-        int down = bufferedImage.getHeight() / 2 + 1;
-        int left = bufferedImage.getWidth() / 2 - 1;
-        int right = bufferedImage.getWidth() / 2 + 1;
-        int horizontal = (int) (bufferedImage.getWidth() * 0.15);
-        int vertical = (int) (bufferedImage.getHeight() * 0.15);
-
-        boolean current = true;
-
-        // found boundaries
-        while (up > 0) {
-            up--;
-            current = true;
-            int[] data = new int[bufferedImage.getWidth()];
-            bufferedImage.getRaster().getPixels(0, up, bufferedImage.getWidth(), 1, data);
-            for (int i = horizontal; i < bufferedImage.getWidth() - horizontal; i++) {
-                if (data[i] != 0) {
-                    current = false;
-                    break;
+    private static void refineCorner(BufferedImage bufferedImage, double[] corners, int corner,
+                                     double horizontalTheta, double verticalTheta, int radius) {
+        int centerX = (int) Math.round(corners[2 * corner]);
+        int centerY = (int) Math.round(corners[2 * corner + 1]);
+        int x0 = Math.max(0, centerX - radius);
+        int y0 = Math.max(0, centerY - radius);
+        int x1 = Math.min(bufferedImage.getWidth(), centerX + radius + 1);
+        int y1 = Math.min(bufferedImage.getHeight(), centerY + radius + 1);
+        if (x1 - x0 < radius || y1 - y0 < radius) {
+            return;
+        }
+        int width = x1 - x0;
+        int height = y1 - y0;
+
+        /* 1. Vote the two borders in the window around the corner */
+        HoughTransform houghTransform = HoughTransform.acquire(width, height, 360,
+                horizontalTheta - 2, horizontalTheta + 2, verticalTheta - 2, verticalTheta + 2);
+        houghTransform.addPoints(bufferedImage.getSubimage(x0, y0, width, height),
+                horizontalTheta - 2, horizontalTheta + 2);
+        houghTransform.addVotes(verticalTheta - 2, verticalTheta + 2);
+
+        /* 2. Take the strongest line of each border, crossing at least half the window */
+        HoughPeaks peaks = houghTransform.getPeaks(radius, Integer.MAX_VALUE, new HoughPeaks());
+        int horizontal = -1;
+        int vertical = -1;
+        for (int i = 0; i < peaks.size(); i++) {
+            double theta = Math.toDegrees(peaks.getThetas()[i]);
+            if (Math.abs(angleBetween(theta, horizontalTheta)) <= 3) {
+                if (horizontal < 0 || peaks.getVotes()[i] > peaks.getVotes()[horizontal]) {
+                    horizontal = i;
                 }
+            } else if (vertical < 0 || peaks.getVotes()[i] > peaks.getVotes()[vertical]) {
+                vertical = i;
             }
-            if (current) {
-                up += 1;
-                break;
-            }
+        }
+        if (horizontal < 0 || vertical < 0) {
+            return;
         }
 
-        while (down < bufferedImage.getHeight() - 1) {
-            down++;
-            current = true;
-            int[] data = new int[bufferedImage.getWidth()];
-            bufferedImage.getRaster().getPixels(0, down, bufferedImage.getWidth(), 1, data);
-            for (int i = horizontal; i < bufferedImage.getWidth() - horizontal; i++) {
-                if (data[i] != 0) {
-                    current = false;
-                    break;
-                }
-            }
-            if (current) {
-                down -= 1;
-                break;
-            }
+        /* 3. Move the corner if the lines cross inside the window, parallel lines never do */
+        Point2D.Double point = parametricIntersect(peaks.getRhos()[horizontal], peaks.getThetas()[horizontal],
+                peaks.getRhos()[vertical], peaks.getThetas()[vertical], width, height);
+        if (point.x >= 0 && point.y >= 0 && point.x < width && point.y < height) {
+            corners[2 * corner] = x0 + point.x;
+            corners[2 * corner + 1] = y0 + point.y;
+        }
+    }
+
+    /**
+     * Gets the hough angle, in degrees, of the line through two points.
+     */
+    private static double lineTheta(double x1, double y1, double x2, double y2) {
+        return Math.toDegrees(Math.atan2(y2 - y1, x2 - x1)) + 90;
+    }
+
+    /**
+     * Gets the angle between two line angles in degrees, in [-90, 90).
+     */
+    private static double angleBetween(double theta1, double theta2) {
+        double angle = theta1 - theta2;
+        return angle - 180 * Math.floor((angle + 90) / 180);
+    }
+
+    /**
+     * Warps the image around the grid corners into a 400x400 image.
+     *
+     * @return the monochrome image that contains only the sudoku grid in case of success, and null otherwise
+     */
+    private static BufferedImage warpGrid(BufferedImage bufferedImage, double[] corners) {
+        Homography homography = Homography.fromPoints(new double[]{0, 0, 400, 0, 400, 400, 0, 400}, corners);
+        if (homography == null) {
+            System.err.println("The grid corners are degenerate");
+            return null;
         }
+        return warpPerspective(bufferedImage, homography, 400, 400);
+    }
 
-        while (left > 0) {
-            left--;
-            current = true;
-            int[] data = new int[bufferedImage.getHeight()];
-            bufferedImage.getRaster().getPixels(left, 0, 1, bufferedImage.getHeight(), data);
-            for (int i = vertical; i < bufferedImage.getHeight() - vertical; i++) {
-                if (data[i] != 0) {
-                    current = false;
-                    break;
+    /**
+     * Reduces a monochrome image by an integer factor, every pixel of the result being the
+     * brightest of the factor x factor pixels it covers, so the thin lines of the grid survive.
+     *
+     * @param bufferedImage the source monochrome image
+     * @param factor        the reduction factor
+     * @return the reduced grayscale image
+     */
+    public static BufferedImage downsample(BufferedImage bufferedImage, int factor) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        int smallWidth = (width + factor - 1) / factor;
+        int smallHeight = (height + factor - 1) / factor;
+        BufferedImage small = new BufferedImage(smallWidth, smallHeight, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] smallPixels = ((DataBufferByte) small.getRaster().getDataBuffer()).getData();
+
+        GrayscaleSource source = GrayscaleSource.of(bufferedImage);
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            source.readRow(y, row, 0);
+            int offset = (y / factor) * smallWidth;
+            for (int x = 0, smallX = 0; x < width; x += factor, smallX++) {
+                int max = smallPixels[offset + smallX] & 0xff;
+                for (int end = Math.min(x + factor, width), i = x; i < end; i++) {
+                    max = Math.max(max, row[i] & 0xff);
                 }
-            }
-            if (current) {
-                left += 1;
-                break;
+                smallPixels[offset + smallX] = (byte) max;
             }
         }
+        return small;
+    }
 
-        while (right < bufferedImage.getWidth() - 1) {
-            right++;
-            current = true;
-            int[] data = new int[bufferedImage.getHeight()];
-            bufferedImage.getRaster().getPixels(right, 0, 1, bufferedImage.getHeight(), data);
-            for (int i = vertical; i < bufferedImage.getHeight() - vertical; i++) {
-                if (data[i] != 0) {
-                    current = false;
-                    break;
-                }
+    /**
+     * Warps an image into a new grayscale image of the given size.
+     * <p/>
+     * The homography maps every pixel of the result back into the source image, where it is
+     * sampled with bilinear interpolation, so only the pixels of the result are computed.
+     * Pixels mapped outside the source image are black. Grayscale byte images are sampled
+     * straight from their data buffer, other images are converted to grayscale first.
+     *
+     * @param bufferedImage the source image
+     * @param homography    the homography mapping the result onto the source image
+     * @param width         the width of the result
+     * @param height        the height of the result
+     * @return the warped grayscale image
+     * @see mb.sudoku.helpers.Homography
+     */
+    public static BufferedImage warpPerspective(BufferedImage bufferedImage, Homography homography, int width, int height) {
+        int sourceWidth = bufferedImage.getWidth();
+        int sourceHeight = bufferedImage.getHeight();
+
+        /* 1. Get the grayscale bytes of the source */
+        if (bufferedImage.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            GrayscaleSource source = GrayscaleSource.of(bufferedImage);
+            BufferedImage gray = new BufferedImage(sourceWidth, sourceHeight, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] grayPixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < sourceHeight; y++) {
+                source.readRow(y, grayPixels, y * sourceWidth);
             }
-            if (current) {
-                right -= 1;
-                break;
+            bufferedImage = gray;
+        }
+        Raster raster = bufferedImage.getRaster();
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] pixels = dataBuffer.getData();
+        int stride = sampleModel.getScanlineStride();
+        int origin = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() + sampleModel.getBandOffsets()[0];
+
+        /* 2. Sample the source at the position of every pixel of the result */
+        BufferedImage warped = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] warpedPixels = ((DataBufferByte) warped.getRaster().getDataBuffer()).getData();
+        double[] h = homography.getCoefficients();
+        int maxX = sourceWidth - 1;
+        int maxY = sourceHeight - 1;
+        for (int y = 0, i = 0; y < height; y++) {
+            // the numerators and the denominator are linear in x, so they are stepped along the row
+            double numeratorX = h[1] * y + h[2];
+            double numeratorY = h[4] * y + h[5];
+            double denominator = h[7] * y + 1;
+            for (int x = 0; x < width; x++, i++) {
+                double sourceX = numeratorX / denominator;
+                double sourceY = numeratorY / denominator;
+                numeratorX += h[0];
+                numeratorY += h[3];
+                denominator += h[6];
+                if (!(sourceX >= 0 && sourceY >= 0 && sourceX <= maxX && sourceY <= maxY)) {
+                    continue;
+                }
+                int x0 = (int) sourceX;
+                int y0 = (int) sourceY;
+                int x1 = Math.min(x0 + 1, maxX);
+                int y1 = Math.min(y0 + 1, maxY);
+                double fx = sourceX - x0;
+                double fy = sourceY - y0;
+                int row0 = origin + y0 * stride;
+                int row1 = origin + y1 * stride;
+                double top = (pixels[row0 + x0] & 0xff) + fx * ((pixels[row0 + x1] & 0xff) - (pixels[row0 + x0] & 0xff));
+                double bottom = (pixels[row1 + x0] & 0xff) + fx * ((pixels[row1 + x1] & 0xff) - (pixels[row1 + x0] & 0xff));
+                warpedPixels[i] = (byte) (int) (top + fy * (bottom - top) + 0.5);
             }
         }
-
-        BufferedImage crop = bufferedImage.getSubimage(left, up, right - left, down - up);
-        crop = resize(crop, 24, 24);
-        return crop;
+        return warped;
     }
 
     /**
-     * This method resizes an image.
+     * Prepares the digit for learning or recognition.
+     * <p/>
+     * Crops the image around the digit, eliminating redundant space and noise
+     * around it, see {@link mb.sudoku.helpers.DigitNormalizer}. Recognizing many
+     * cells is faster with a {@link mb.sudoku.helpers.DigitNormalizer} working on
+     * their bytes directly.
      *
-     * @param img  the source image
-     * @param newW new width
-     * @param newH new height
-     * @return resized image
+     * @param bufferedImage the source square monochrome image
+     * @return a monochrome 24x24 image with the noise and space eliminated.
      */
-    private static BufferedImage resize(BufferedImage img, int newW, int newH) {
-        Image tmp = img.getScaledInstance(newW, newH, Image.SCALE_SMOOTH);
-        BufferedImage resizedImage = new BufferedImage(newW, newH, BufferedImage.TYPE_BYTE_GRAY);
-
-        Graphics2D graphics = resizedImage.createGraphics();
-        graphics.drawImage(tmp, 0, 0, null);
-        graphics.dispose();
+    public static BufferedImage prepareDigit(BufferedImage bufferedImage) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        GrayscaleSource source = GrayscaleSource.of(bufferedImage);
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            source.readRow(y, pixels, y * width);
+        }
 
-        return resizedImage;
+        BufferedImage digit = new BufferedImage(DigitNormalizer.SIZE, DigitNormalizer.SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        new DigitNormalizer().normalize(pixels, 0, width, width, height,
+                ((DataBufferByte) digit.getRaster().getDataBuffer()).getData());
+        return digit;
     }
 
     /**
      * This method finds an intersection between two lines defined
      * with [radius, angle] ({@link mb.sudoku.helpers.HoughLine})
+     * <p/>
+     * Each line satisfies {@code (x - centerX) * cos(t) + (y - centerY) * sin(t) = r - houghHeight},
+     * so the intersection is the solution of a 2x2 linear system. Parallel lines have no solution,
+     * they give a point whose coordinates are both {@link Double#NaN}: it fails every comparison, so
+     * it is never taken for a point inside the space, and it can be told by {@link Double#isNaN(double)}.
      *
      * @param r1     radius of the first line
      * @param t1     angle of the first line
@@ -482,82 +794,50 @@ public class ImageTools {
      * @param t2     angle of the second line
      * @param width  width of the space
      * @param height height of the space
-     * @return if the lines intersect - the point of intersection, null - otherwise
+     * @return the point of intersection, which may be outside the space, with NaN coordinates if the lines are parallel
      */
-    private static Point parametricIntersect(double r1, double t1, double r2, double t2, int width, int height) {
+    public static Point2D.Double parametricIntersect(double r1, double t1, double r2, double t2, int width, int height) {
         int houghHeight = (int) (Math.sqrt(2) * Math.max(height, width)) / 2;
 
-        /* Find edge points and vote in array */
         float centerX = width / 2;
         float centerY = height / 2;
 
-        /* Draw edges in output array */
-        double tsin = Math.sin(t1);
-        double tcos = Math.cos(t1);
-        double dsin = Math.sin(t2);
-        double dcos = Math.cos(t2);
-
-        if (t1 < Math.PI * 0.25 || t1 > Math.PI * 0.75) {
-            /* t1 is a vertical line */
-            for (int y = 0; y < height; y++) {
-                int x = (int) ((((r1 - houghHeight) - ((y - centerY) * tsin)) / tcos) + centerX);
-                int fy = (int) ((((r2 - houghHeight) - ((x - centerX) * dcos)) / dsin) + centerY);
-                if (y == fy) {
-                    return new Point(x, y);
-                }
-            }
-        } else {
-            /* t1 is a horizontal line */
-            for (int x = 0; x < width; x++) {
-                int y = (int) ((((r1 - houghHeight) - ((x - centerX) * tcos)) / tsin) + centerY);
-                int fx = (int) ((((r2 - houghHeight) - ((y - centerY) * dsin)) / dcos) + centerX);
-                if (x == fx) {
-                    return new Point(x, y);
-                }
-            }
+        double cos1 = Math.cos(t1);
+        double sin1 = Math.sin(t1);
+        double cos2 = Math.cos(t2);
+        double sin2 = Math.sin(t2);
+
+        /* The determinant is sin(t2 - t1), zero for parallel lines */
+        double determinant = cos1 * sin2 - cos2 * sin1;
+        if (Math.abs(determinant) < 1e-9) {
+            return new Point2D.Double(Double.NaN, Double.NaN);
         }
 
-        return null;
+        double c1 = r1 - houghHeight;
+        double c2 = r2 - houghHeight;
+        double x = (c1 * sin2 - c2 * sin1) / determinant;
+        double y = (cos1 * c2 - cos2 * c1) / determinant;
+        return new Point2D.Double(x + centerX, y + centerY);
     }
 
-    public static class LineComparator implements Comparator<HoughLine> {
+    /**
+     * The buffers used by {@link #monochrome(java.awt.image.BufferedImage, mb.sudoku.utils.ImageTools.ThresholdWorkspace)}.
+     * Their size only depends on the image width, so a workspace kept by a thread
+     * can be reused for every image it processes. A workspace must not be shared
+     * between threads.
+     */
+    public static class ThresholdWorkspace {
 
-        private final int height;
-        private final int width;
+        /* The rows the rolling window needs: 11 for the window plus the row leaving it */
+        static final int ROWS = 12;
 
-        public LineComparator(int width, int height) {
-            this.width = width;
-            this.height = height;
-        }
+        private byte[] rows = new byte[0];
+        private int[] columnSums = new int[0];
 
-        @Override
-        public int compare(HoughLine o1, HoughLine o2) {
-            int houghHeight = (int) (Math.sqrt(2) * Math.max(height, width)) / 2;
-
-            /* Find edge points and vote in array */
-            float centerX = width / 2;
-            float centerY = height / 2;
-
-            /* Draw edges in output array */
-            double tsin = Math.sin(o1.getTheta());
-            double tcos = Math.cos(o1.getTheta());
-
-            /* Draw edges in output array */
-            double dsin = Math.sin(o2.getTheta());
-            double dcos = Math.cos(o2.getTheta());
-
-            if (o1.getTheta() < Math.PI * 0.25 || o1.getTheta() > Math.PI * 0.75) {
-                /* Draw vertical lines */
-                int y = height / 2;
-                int x1 = (int) ((((o1.getR() - houghHeight) - ((y - centerY) * tsin)) / tcos) + centerX);
-                int x2 = (int) ((((o2.getR() - houghHeight) - ((y - centerY) * dsin)) / dcos) + centerX);
-                return x1 - x2;
-            } else {
-                /* Draw horizontal lines */
-                int x = width / 2;
-                int y1 = (int) ((((o1.getR() - houghHeight) - ((x - centerX) * tcos)) / tsin) + centerY);
-                int y2 = (int) ((((o2.getR() - houghHeight) - ((x - centerX) * dcos)) / dsin) + centerY);
-                return y1 - y2;
+        void ensureCapacity(int width) {
+            if (columnSums.length < width) {
+                rows = new byte[ROWS * width];
+                columnSums = new int[width];
             }
         }
     }
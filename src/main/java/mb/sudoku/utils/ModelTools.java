@@ -0,0 +1,195 @@
+package mb.sudoku.utils;
+
+import mb.sudoku.helpers.DigitRecognizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * <h1>ModelTools</h1>
+ * The ModelTools class contains methods that
+ * deal with persisting the learned digit recognizer.
+ * <p/>
+ * The model file is a small versioned binary file:
+ * <pre>
+ *   int    magic          'SDKM'
+ *   int    version        {@link #VERSION}
+ *   int    digits         number of templates
+ *   int    size           pixels per template (24 * 24)
+ *   long   fingerprint    {@link #fingerprint(java.io.File)} of the train directory
+ *   double occupancy      {@link DigitRecognizer#getOccupancyThreshold()}
+ *   byte   templates[digits * size]
+ *   long   checksum       CRC32 of all the bytes above
+ * </pre>
+ * The templates are averages of monochrome images so they fit in unsigned bytes.
+ */
+public class ModelTools {
+
+    /* 'SDKM' */
+    private static final int MAGIC = 0x53444B4D;
+
+    /* Increase whenever the layout or the digit preparation changes */
+    public static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+
+    /**
+     * Computes a fingerprint of the training samples. Every sample that
+     * {@link SudokuTools#learn()} would use contributes its path and its
+     * contents, so any added, removed or modified sample changes the value.
+     *
+     * @param trainDir the train directory
+     * @return the CRC32 of the training samples
+     */
+    public static long fingerprint(File trainDir) {
+        CRC32 crc = new CRC32();
+        File[] numberDirs = trainDir.listFiles();
+        if (numberDirs == null) {
+            return crc.getValue();
+        }
+        Arrays.sort(numberDirs);
+        for (File numberDir : numberDirs) {
+            if (numberDir.isFile() || numberDir.getName().contains(".")) {
+                continue;
+            }
+            File[] images = numberDir.listFiles();
+            Arrays.sort(images);
+            for (File image : images) {
+                if (!image.getName().contains(".jpg")) {
+                    continue;
+                }
+                crc.update((numberDir.getName() + "/" + image.getName()).getBytes());
+                try {
+                    crc.update(readFully(image));
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Saves the learned recognizer to the model file.
+     * <p/>
+     * This method will not throw an exception in case the save fails.
+     *
+     * @param modelFile   the destination file
+     * @param recognizer  the recognizer, every value of its templates in [0, 255]
+     * @param fingerprint the fingerprint of the train directory the recognizer was learned from
+     * @return true if the operation was successful, false if the operation failed
+     */
+    public static boolean save(File modelFile, DigitRecognizer recognizer, long fingerprint) {
+        int[][] templates = recognizer.getTemplates();
+        int digits = templates.length;
+        int size = templates[0].length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + digits * size + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(digits);
+        buffer.putInt(size);
+        buffer.putLong(fingerprint);
+        buffer.putDouble(recognizer.getOccupancyThreshold());
+        for (int[] template : templates) {
+            for (int value : template) {
+                buffer.put((byte) value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        File directory = modelFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(modelFile);
+            outputStream.write(buffer.array());
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * Loads the recognizer from the model file.
+     * <p/>
+     * This method will not throw an exception in case the load fails.
+     *
+     * @param modelFile   the model file
+     * @param fingerprint the current fingerprint of the train directory
+     * @return the recognizer, or null if the file is missing, corrupted, of another version
+     * or was learned from different training samples
+     */
+    public static DigitRecognizer load(File modelFile, long fingerprint) {
+        if (!modelFile.isFile()) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = readFully(modelFile);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+        if (bytes.length < HEADER_SIZE + 8) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (buffer.getLong(bytes.length - 8) != crc.getValue()) {
+            return null;
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        int digits = buffer.getInt();
+        int size = buffer.getInt();
+        if (buffer.getLong() != fingerprint || bytes.length != HEADER_SIZE + digits * size + 8) {
+            return null;
+        }
+        double occupancyThreshold = buffer.getDouble();
+
+        int[][] templates = new int[digits][size];
+        for (int i = 0; i < digits; i++) {
+            for (int j = 0; j < size; j++) {
+                templates[i][j] = buffer.get() & 0xff;
+            }
+        }
+        return new DigitRecognizer(templates, occupancyThreshold);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void close(FileOutputStream outputStream) {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -1,16 +1,14 @@
 package mb.sudoku.utils;
 
-import mb.sudoku.helpers.HoughLine;
-import mb.sudoku.helpers.HoughTransform;
+import mb.sudoku.helpers.DigitNormalizer;
+import mb.sudoku.helpers.DigitRecognizer;
+import mb.sudoku.helpers.GrayscaleSource;
+import mb.sudoku.helpers.SudokuReading;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Vector;
 
 /**
  * <h1>ImageTools</h1>
@@ -23,27 +21,44 @@ import java.util.Vector;
  */
 public class SudokuTools {
 
-    /* Learned data */
-    private static int [][] data;
+    /* Directory with the training samples */
+    private static final File TRAIN_DIR = new File("train");
+
+    /* File the learned templates are persisted to */
+    private static final File MODEL_FILE = new File("learned/model.bin");
+
+    /* The size of a sampled cell, the size of the training samples */
+    private static final int CELL_SIZE = 36;
+
+    /* The parts of a cell left out at its top and left, and at its bottom and right, where the grid lines are */
+    private static final double CELL_MARGIN = 0.08;
+    private static final double CELL_MARGIN_END = 0.04;
 
     /**
      * Performs learning from samples in the train directory.
-     * Saves the trained data in the learned directory.
+     * Saves the trained data in the learned directory, both as
+     * images and as the model file loaded by {@link #loadRecognizer()}.
+     * <p/>
+     * The occupancy threshold of the recognizer is calibrated on the same samples: it is halfway
+     * between the most ink found in the middle of an empty sample, in the 0 directory, and the
+     * least ink found in the middle of a digit. If the two overlap every cell with ink is recognized.
      *
      * This method will not throw an exception in case the save fails.
+     *
+     * @return the recognizer built from the learned data
      */
-    public static void learn() {
-        data = new int[10][576];
-        for (int i = 0; i < 10; i++) {
-            for (int j = 0; j < 576; j++) {
-                data[i][j] = 0;
-            }
-        }
-        File trainDir =  new File("train");
-        for (File numberDir: trainDir.listFiles()) {
+    public static DigitRecognizer learn() {
+        long fingerprint = ModelTools.fingerprint(TRAIN_DIR);
+        int [][] learned = new int[10][576];
+        DigitNormalizer normalizer = new DigitNormalizer();
+        byte[] digit = new byte[DigitRecognizer.SIZE];
+        double emptyInk = 0;
+        double digitInk = Double.MAX_VALUE;
+        for (File numberDir: TRAIN_DIR.listFiles()) {
             if (numberDir.isFile() || numberDir.getName().contains(".")) {
                 continue;
             }
+            int number = Integer.parseInt(numberDir.getName());
             int countTrained = 0;
             for (File image: numberDir.listFiles()) {
                 if (!image.getName().contains(".jpg")) {
@@ -51,11 +66,18 @@ public class SudokuTools {
                 }
                 try {
                     BufferedImage bufferedImage = ImageIO.read(image);
-                    bufferedImage = ImageTools.prepareDigit(bufferedImage);
-                    int [] imageData = new int[24 * 24];
-                    bufferedImage.getRaster().getPixels(0, 0, 24, 24, imageData);
+                    byte[] pixels = grayPixels(bufferedImage);
+                    double ink = DigitNormalizer.centerInk(pixels, 0, bufferedImage.getWidth(),
+                            bufferedImage.getWidth(), bufferedImage.getHeight());
+                    if (number == 0) {
+                        emptyInk = Math.max(emptyInk, ink);
+                    } else {
+                        digitInk = Math.min(digitInk, ink);
+                    }
+                    normalizer.normalize(pixels, 0, bufferedImage.getWidth(),
+                            bufferedImage.getWidth(), bufferedImage.getHeight(), digit);
                     for (int i = 0; i < 24 * 24; i++) {
-                        data[Integer.parseInt(numberDir.getName())][i] += imageData[i];
+                        learned[number][i] += digit[i] & 0xff;
                     }
                     countTrained++;
                 } catch (IOException e) {
@@ -66,92 +88,156 @@ public class SudokuTools {
                 continue;
             }
             for (int i = 0; i < 24 * 24; i++) {
-                data[Integer.parseInt(numberDir.getName())][i] /= countTrained;
-                BufferedImage learnedNumber = new BufferedImage(24, 24, BufferedImage.TYPE_BYTE_GRAY);
-                learnedNumber.getRaster().setPixels(0, 0, 24, 24, data[Integer.parseInt(numberDir.getName())]);
-                try {
-                    ImageIO.write(learnedNumber, "jpg", new File("learned/" + numberDir.getName() + ".jpg"));
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                }
+                learned[number][i] /= countTrained;
+            }
+            BufferedImage learnedNumber = new BufferedImage(24, 24, BufferedImage.TYPE_BYTE_GRAY);
+            learnedNumber.getRaster().setPixels(0, 0, 24, 24, learned[number]);
+            try {
+                ImageIO.write(learnedNumber, "jpg", new File("learned/" + numberDir.getName() + ".jpg"));
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
             }
         }
+        double occupancyThreshold = emptyInk < digitInk && digitInk != Double.MAX_VALUE
+                ? (emptyInk + digitInk) / 2 : 0;
+        DigitRecognizer recognizer = new DigitRecognizer(learned, occupancyThreshold);
+        ModelTools.save(MODEL_FILE, recognizer, fingerprint);
+        return recognizer;
+    }
+
+    /**
+     * Loads the recognizer from the model file, or performs learning if the
+     * model file is missing or was learned from samples other than the ones
+     * currently in the train directory.
+     * <p/>
+     * The returned recognizer is immutable, load it once and share it between
+     * all the threads calling {@link #getSudoku(java.awt.image.BufferedImage, mb.sudoku.helpers.DigitRecognizer)}.
+     *
+     * @return the recognizer built from the learned data
+     */
+    public static DigitRecognizer loadRecognizer() {
+        DigitRecognizer recognizer = ModelTools.load(MODEL_FILE, ModelTools.fingerprint(TRAIN_DIR));
+        if (recognizer == null) {
+            return learn();
+        }
+        return recognizer;
     }
 
     /**
      * This method returns the sudoku grid as {@code int[][]}
      *
      * @param bufferedImage the monochrome image containing just the sudoku grid
+     * @param recognizer    the recognizer used for the cells
      * @return the sudoku grid
+     * @see #readSudoku(java.awt.image.BufferedImage, mb.sudoku.helpers.DigitRecognizer)
      */
-    public static int[][] getSudoku(BufferedImage bufferedImage) {
-        Image tmp = bufferedImage.getScaledInstance(360, 360, Image.SCALE_SMOOTH);
-        bufferedImage = new BufferedImage(360, 360, BufferedImage.TYPE_BYTE_GRAY);
-        Graphics2D g2d = bufferedImage.createGraphics();
-        g2d.drawImage(tmp, 0, 0, null);
-        g2d.dispose();
-        int width = bufferedImage.getWidth();
-        int height = bufferedImage.getHeight();
-
-        ArrayList<HoughLine> horizontal = new ArrayList<HoughLine>();
-        ArrayList<HoughLine> vertical = new ArrayList<HoughLine>();
+    public static int[][] getSudoku(BufferedImage bufferedImage, DigitRecognizer recognizer) {
+        return read(bufferedImage, recognizer, true).getDigits();
+    }
 
-        HoughTransform ht = new HoughTransform(width, height);
-        ht.addPoints(bufferedImage);
+    /**
+     * This method returns which cells of the sudoku grid hold a digit, without recognizing the digits.
+     *
+     * @param bufferedImage the monochrome image containing just the sudoku grid
+     * @param recognizer    the recognizer holding the occupancy threshold
+     * @return true for every cell holding a digit
+     */
+    public static boolean[][] getOccupancy(BufferedImage bufferedImage, DigitRecognizer recognizer) {
+        return read(bufferedImage, recognizer, false).getOccupancy();
+    }
 
-        Vector<HoughLine> lines = ht.getLines((int) (0.5 * ht.getHighestValue()));
-        for (HoughLine line : lines) {
-            if ((line.getTheta() > 0.05 && line.getTheta() < 1.54) || (line.getTheta() > 1.60 && line.getTheta() < 3.09)) {
-                continue;
-            }
-            if (line.getTheta() > 1.41 && line.getTheta() < 1.59) {
-                horizontal.add(line);
-            } else {
-                vertical.add(line);
-            }
-        }
+    /**
+     * This method reads every cell of the sudoku grid, its digit and whether it holds one.
+     * <p/>
+     * Every cell is sampled straight from the grid image by
+     * {@link DigitNormalizer#resampleArea(byte[], int, int, int, int, double, double, double, double, byte[], int, int, int)},
+     * at the {@code CELL_SIZE} pixels of the training samples, leaving out the grid lines around
+     * it. The ink in the middle of the cell tells whether it is empty; only the occupied
+     * cells are normalized by a {@link DigitNormalizer}, packed one after the other, and recognized
+     * together by {@link DigitRecognizer#recognize(byte[], int, int[], double[])}.
+     *
+     * @param bufferedImage the monochrome image containing just the sudoku grid
+     * @param recognizer    the recognizer used for the cells
+     * @return the reading of the cells, with the confidence of every cell
+     */
+    public static SudokuReading readSudoku(BufferedImage bufferedImage, DigitRecognizer recognizer) {
+        return read(bufferedImage, recognizer, true);
+    }
 
-        Collections.sort(horizontal, new ImageTools.LineComparator(width, height));
-        Collections.sort(vertical, new ImageTools.LineComparator(width, height));
+    private static SudokuReading read(BufferedImage bufferedImage, DigitRecognizer recognizer, boolean recognizeDigits) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
 
-        int cellWidth = width / 9;
-        int cellHeight = height / 9;
+        /* 1. Read the grayscale pixels of the grid once */
+        byte[] pixels = grayPixels(bufferedImage);
 
-        int [][]table = new int[9][9];
-        SudokuTools.learn();
+        /* 2. Sample every cell, normalizing the occupied ones into the batch */
+        DigitNormalizer normalizer = new DigitNormalizer();
+        byte[] cell = new byte[CELL_SIZE * CELL_SIZE];
+        byte[] digits = new byte[81 * DigitRecognizer.SIZE];
+        int[] batchCells = new int[81];
+        double[] ink = new double[81];
+        int count = 0;
+        double cellWidth = width / 9.0;
+        double cellHeight = height / 9.0;
+        SudokuReading reading = new SudokuReading();
         for (int i = 0; i < 9; i++) {
             for (int j = 0; j < 9; j++) {
-                BufferedImage number = bufferedImage.getSubimage(cellWidth * i + 4, cellHeight * j + 4, cellWidth - 4, cellHeight - 4);
-                table[j][i] = SudokuTools.recognize(number);
+                DigitNormalizer.resampleArea(pixels, 0, width, width, height,
+                        cellWidth * (i + CELL_MARGIN), cellHeight * (j + CELL_MARGIN),
+                        cellWidth * (1 - CELL_MARGIN - CELL_MARGIN_END), cellHeight * (1 - CELL_MARGIN - CELL_MARGIN_END),
+                        cell, 0, CELL_SIZE, CELL_SIZE);
+                int index = j * 9 + i;
+                ink[index] = DigitNormalizer.centerInk(cell, 0, CELL_SIZE, CELL_SIZE, CELL_SIZE);
+                if (!recognizer.isOccupied(ink[index])) {
+                    reading.set(j, i, ink[index], false, 0, recognizer.emptyConfidence(ink[index]));
+                } else if (recognizeDigits) {
+                    normalizer.normalize(cell, 0, CELL_SIZE, CELL_SIZE, CELL_SIZE, digits, count * DigitRecognizer.SIZE);
+                    batchCells[count++] = index;
+                } else {
+                    reading.set(j, i, ink[index], true, 0, 1);
+                }
             }
         }
 
-        return table;
+        /* 3. Recognize all the occupied cells at once */
+        int[] numbers = new int[count];
+        double[] confidences = new double[count];
+        recognizer.recognize(digits, count, numbers, confidences);
+        for (int k = 0; k < count; k++) {
+            int index = batchCells[k];
+            reading.set(index / 9, index % 9, ink[index], true, numbers[k], confidences[k]);
+        }
+
+        return reading;
     }
 
     /**
      * This method returns the most likely number on the image
      *
      * @param bufferedImage the monochrome image containing a sudoku cell
+     * @param recognizer    the recognizer holding the learned data
      * @return the most likely number that is contained in the image
      */
-    public static int recognize(BufferedImage bufferedImage) {
-        bufferedImage = ImageTools.prepareDigit(bufferedImage);
-        int [] imageData = new int[24 * 24];
-        bufferedImage.getRaster().getPixels(0, 0, 24, 24, imageData);
-        int minDistance = 1000000000;
-        int minDistanceNumber = 0;
-        for (int i = 0; i < 10; i++) {
-            int distance = 0;
-            for (int j = 0; j < 24 * 24; j++) {
-                distance += ((data[i][j] - imageData[j]) * (data[i][j] - imageData[j]));
-            }
-            if (distance < minDistance) {
-                minDistance = distance;
-                minDistanceNumber = i;
-            }
+    public static int recognize(BufferedImage bufferedImage, DigitRecognizer recognizer) {
+        byte[] digit = new byte[DigitRecognizer.SIZE];
+        new DigitNormalizer().normalize(grayPixels(bufferedImage), 0, bufferedImage.getWidth(),
+                bufferedImage.getWidth(), bufferedImage.getHeight(), digit);
+        return recognizer.recognize(digit);
+    }
+
+    /**
+     * Reads the grayscale pixels of an image, row by row.
+     */
+    private static byte[] grayPixels(BufferedImage bufferedImage) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        GrayscaleSource source = GrayscaleSource.of(bufferedImage);
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            source.readRow(y, pixels, y * width);
         }
-        return minDistanceNumber;
+        return pixels;
     }
 
 }